@@ -0,0 +1,137 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* ComputeClientBenchmark.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.services.compute.Compute;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Setup cost of a refresh: a new transport and Compute client for every refresh, as before, against the transport and
+ * client shared through {@link ComputeClients}.
+ * <p/>
+ * The request benchmarks make one HTTPS request to a local server per refresh, so the per refresh transport pays a
+ * TLS handshake every time while the shared one keeps its connection alive. Both transports are built the way
+ * {@code GoogleNetHttpTransport.newTrustedTransport()} builds them, but trusting the certificate of the local server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+//without TCP_NODELAY the local server adds a delayed ACK wait to every kept alive request
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class ComputeClientBenchmark {
+    private static final String KEYSTORE = "/benchmark-localhost.jks";
+    private static final char[] KEYSTORE_PASSWORD = "benchmark".toCharArray();
+    private static final byte[] RESPONSE = "{\"kind\":\"compute#instanceAggregatedList\",\"items\":{}}".getBytes();
+
+    private KeyStore keyStore;
+    private HttpsServer server;
+    private GenericUrl url;
+    private HttpTransport sharedTransport;
+    private GoogleCredential credential;
+
+    @Setup
+    public void setUp() throws Exception {
+        keyStore = KeyStore.getInstance("JKS");
+        final InputStream in = ComputeClientBenchmark.class.getResourceAsStream(KEYSTORE);
+        try {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        final SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+        server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, RESPONSE.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(RESPONSE);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        url = new GenericUrl("https://localhost:" + server.getAddress().getPort()
+                             + "/compute/v1/projects/benchmark/aggregated/instances");
+        sharedTransport = newTransport();
+        credential = new GoogleCredential().setAccessToken("benchmark-token");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private HttpTransport newTransport() throws Exception {
+        return new NetHttpTransport.Builder().trustCertificates(keyStore).build();
+    }
+
+    private String get(final HttpTransport transport) throws IOException {
+        return transport.createRequestFactory().buildGetRequest(url).execute().parseAsString();
+    }
+
+    @Benchmark
+    public String perRefreshTransportRequest() throws Exception {
+        return get(newTransport());
+    }
+
+    @Benchmark
+    public String sharedTransportRequest() throws Exception {
+        return get(sharedTransport);
+    }
+
+    @Benchmark
+    public Compute perRefreshClient() throws Exception {
+        return new Compute.Builder(newTransport(), ComputeClients.JSON_FACTORY, credential)
+                .setApplicationName(ComputeClients.APPLICATION_NAME)
+                .build();
+    }
+
+    @Benchmark
+    public Compute sharedClient() {
+        return ComputeClients.forCredential("/etc/rundeck/benchmark-key.json", credential);
+    }
+}
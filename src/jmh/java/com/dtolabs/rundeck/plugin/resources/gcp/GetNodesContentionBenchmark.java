@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* GetNodesContentionBenchmark.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import com.dtolabs.rundeck.core.resources.ResourceModelSourceException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Hundreds of callers asking a source for its nodes at once, while the nodes are refreshed every second by a query
+ * taking {@link #QUERY_MILLIS} ms. Each caller pauses {@link #THINK_MILLIS} ms between calls, like requests would,
+ * rather than spinning on the source. Besides the calls per second, {@link Calls#stalled} counts the calls which waited
+ * for a query: they are a small fraction of all calls, so they hardly show in the throughput or the percentiles.
+ * <p/>
+ * {@link #snapshot} uses {@link GCPResourceModelSource}, with a query returning a fixed node set instead of querying
+ * Compute Engine. {@link #synchronizedGetNodes} is the previous {@code synchronized getNodes()}: its asynchronous query
+ * actually ran in {@code Future.get()}, called by the next request while holding the lock.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Threads(64)
+@Fork(1)
+public class GetNodesContentionBenchmark {
+    static final long QUERY_MILLIS = 200;
+    static final long REFRESH_INTERVAL = 1000;
+    static final long THINK_MILLIS = 1;
+    static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(QUERY_MILLIS / 2);
+
+    static INodeSet nodes(final int count) {
+        final NodeSetImpl nodes = new NodeSetImpl();
+        for (int i = 0; i < count; i++) {
+            final NodeEntryImpl node = new NodeEntryImpl("node-" + i);
+            node.setHostname("node-" + i);
+            nodes.putNode(node);
+        }
+        return nodes;
+    }
+
+    static void simulateQuery() {
+        try {
+            Thread.sleep(QUERY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Snapshot {
+        GCPResourceModelSource source;
+        ExecutorService queries;
+
+        @Setup
+        public void setUp() throws ResourceModelSourceException {
+            final Properties configuration = new Properties();
+            configuration.setProperty(GCPResourceModelSourceFactory.PROJECT_ID, "benchmark");
+            configuration.setProperty(GCPResourceModelSourceFactory.CREDENTIAL_FILE, "/nonexistent/benchmark.json");
+            configuration.setProperty(GCPResourceModelSourceFactory.REFRESH_INTERVAL,
+                                      Long.toString(REFRESH_INTERVAL / 1000));
+            configuration.setProperty(GCPResourceModelSourceFactory.BACKGROUND_REFRESH, "false");
+            configuration.setProperty(GCPResourceModelSourceFactory.PERSIST_SNAPSHOT, "false");
+            source = new GCPResourceModelSource(configuration);
+            source.projects.close();
+            queries = Executors.newSingleThreadExecutor();
+            final INodeSet nodes = nodes(1000);
+            source.projects = new MultiProjectQuery(Collections.<InstanceToNodeMapper>emptyList(), 1) {
+                CompletableFuture<INodeSet> performQueryAsync() {
+                    return CompletableFuture.supplyAsync(new Supplier<INodeSet>() {
+                        public INodeSet get() {
+                            simulateQuery();
+                            return nodes;
+                        }
+                    }, queries);
+                }
+            };
+            source.getNodes();
+        }
+
+        @TearDown
+        public void tearDown() {
+            source.close();
+            queries.shutdownNow();
+        }
+    }
+
+    /**
+     * The previous getNodes()
+     */
+    @State(Scope.Benchmark)
+    public static class Synchronized {
+        private final INodeSet queried = nodes(1000);
+        private INodeSet nodes;
+        private long lastRefresh = 0;
+        private boolean queryPending = false;
+
+        synchronized INodeSet getNodes() {
+            if (queryPending) {
+                //Future.get() of the previous performQueryAsync() performed the query
+                simulateQuery();
+                nodes = queried;
+                queryPending = false;
+            }
+            if (System.currentTimeMillis() - lastRefresh <= REFRESH_INTERVAL) {
+                return nodes;
+            }
+            if (lastRefresh > 0) {
+                queryPending = true;
+            } else {
+                simulateQuery();
+                nodes = queried;
+            }
+            lastRefresh = System.currentTimeMillis();
+            return nodes;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Calls {
+        /** calls which took at least half a query */
+        public long stalled;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            stalled = 0;
+        }
+
+        long think() throws InterruptedException {
+            Thread.sleep(THINK_MILLIS);
+            return System.nanoTime();
+        }
+
+        void record(final long started) {
+            if (System.nanoTime() - started >= STALL_NANOS) {
+                stalled++;
+            }
+        }
+    }
+
+    @Benchmark
+    public INodeSet snapshot(final Snapshot state, final Calls calls) throws ResourceModelSourceException,
+        InterruptedException {
+        final long started = calls.think();
+        final INodeSet nodes = state.source.getNodes();
+        calls.record(started);
+        return nodes;
+    }
+
+    @Benchmark
+    public INodeSet synchronizedGetNodes(final Synchronized state, final Calls calls) throws InterruptedException {
+        final long started = calls.think();
+        final INodeSet nodes = state.getNodes();
+        calls.record(started);
+        return nodes;
+    }
+}
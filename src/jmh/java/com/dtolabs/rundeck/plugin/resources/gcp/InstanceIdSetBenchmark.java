@@ -0,0 +1,125 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceIdSetBenchmark.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.services.compute.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collecting the listed pages of a project: into a {@code HashSet<Instance>}, as before, which hashes and compares
+ * the whole JSON tree of every instance, against {@link InstanceIdSet}, which only looks at the instance ids.
+ * <p/>
+ * The instances are pages of {@link #PAGE_SIZE} Compute {@link Instance}s, with disks, metadata, labels and a network
+ * interface, and the last instance of every page listed again at the top of the next one, as when the list shifts
+ * between two pages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstanceIdSetBenchmark {
+    static final int PAGE_SIZE = 500;
+
+    @Param({"10000", "50000"})
+    public int instanceCount;
+
+    private List<List<Instance>> pages;
+
+    @Setup
+    public void setUp() {
+        final List<Instance> instances = new ArrayList<Instance>(instanceCount);
+        for (int i = 0; i < instanceCount; i++) {
+            instances.add(instance(i));
+        }
+        pages = new ArrayList<List<Instance>>();
+        for (int from = 0; from < instanceCount; from += PAGE_SIZE) {
+            final List<Instance> page = new ArrayList<Instance>(PAGE_SIZE + 1);
+            if (from > 0) {
+                page.add(instances.get(from - 1));
+            }
+            page.addAll(instances.subList(from, Math.min(from + PAGE_SIZE, instanceCount)));
+            pages.add(page);
+        }
+    }
+
+    static Instance instance(final int i) {
+        final String zone = "us-central1-" + (char) ('a' + i % 4);
+        final String name = "instance-" + i;
+        final Map<String, String> labels = new HashMap<String, String>();
+        labels.put("environment", i % 3 == 0 ? "prod" : "dev");
+        labels.put("osname", "centos");
+        labels.put("team", "team-" + i % 20);
+        final List<Metadata.Items> items = new ArrayList<Metadata.Items>();
+        items.add(new Metadata.Items().setKey("startup-script").setValue("#!/bin/sh\necho started " + name + "\n"));
+        items.add(new Metadata.Items().setKey("ssh-keys").setValue("rundeck:ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAAB" + i));
+        return new Instance()
+                .setId(BigInteger.valueOf(4000000000000000000L + i))
+                .setName(name)
+                .setKind("compute#instance")
+                .setZone("https://www.googleapis.com/compute/v1/projects/benchmark/zones/" + zone)
+                .setSelfLink("https://www.googleapis.com/compute/v1/projects/benchmark/zones/" + zone
+                             + "/instances/" + name)
+                .setMachineType("https://www.googleapis.com/compute/v1/projects/benchmark/zones/" + zone
+                                + "/machineTypes/n1-standard-1")
+                .setStatus("RUNNING")
+                .setCreationTimestamp("2018-05-01T10:00:00.000-07:00")
+                .setLabels(labels)
+                .setTags(new Tags().setItems(Arrays.asList("http-server", "https-server")))
+                .setMetadata(new Metadata().setItems(items))
+                .setDisks(Collections.singletonList(
+                        new AttachedDisk().setBoot(true).setDeviceName(name).setMode("READ_WRITE")
+                                .setSource("https://www.googleapis.com/compute/v1/projects/benchmark/zones/" + zone
+                                           + "/disks/" + name)))
+                .setNetworkInterfaces(Collections.singletonList(
+                        new NetworkInterface().setName("nic0")
+                                .setNetwork("https://www.googleapis.com/compute/v1/projects/benchmark/global/"
+                                            + "networks/default")
+                                .setNetworkIP("10.0." + (i >> 8 & 0xff) + "." + (i & 0xff))
+                                .setAccessConfigs(Collections.singletonList(
+                                        new AccessConfig().setName("External NAT").setType("ONE_TO_ONE_NAT")
+                                                .setNatIP("35.0." + (i >> 8 & 0xff) + "." + (i & 0xff))))));
+    }
+
+    @Benchmark
+    public Set<Instance> hashSetOfInstances() {
+        final Set<Instance> instances = new HashSet<Instance>();
+        for (final List<Instance> page : pages) {
+            instances.addAll(page);
+        }
+        return instances;
+    }
+
+    @Benchmark
+    public List<Instance> instanceIdSet() {
+        final InstanceIdSet seen = new InstanceIdSet();
+        final List<Instance> instances = new ArrayList<Instance>();
+        for (final List<Instance> page : pages) {
+            instances.addAll(seen.addAll(page));
+        }
+        return instances;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* MappingBenchmark.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mapping a project's instances to nodes with the default mapping: the {@link MappingPlan} compiled once, against the
+ * previous instanceToNode, which compiled its patterns, scanned the mapping properties and split the selectors for
+ * every instance.
+ * <p/>
+ * The previous selectors read the instance with commons-beanutils, which is gone; {@link #perInstanceMapping} applies
+ * each selector part with a freshly compiled {@link Selector} instead, so it only measures the per instance work the
+ * plan removed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark {
+    private static final String PROJECT = "benchmark";
+
+    @Param({"10000", "50000"})
+    public int instanceCount;
+
+    private Properties mapping;
+    private MappingPlan plan;
+    private List<Map<String, Object>> instances;
+
+    @Setup
+    public void setUp() throws IOException {
+        mapping = new Properties();
+        final InputStream in = MappingBenchmark.class.getResourceAsStream("/defaultMapping.properties");
+        try {
+            mapping.load(in);
+        } finally {
+            in.close();
+        }
+        plan = MappingPlan.compile(mapping);
+        instances = instances(instanceCount);
+    }
+
+    /**
+     * Instances as parsed from a list response, with the fields read by the default mapping
+     */
+    static List<Map<String, Object>> instances(final int count) {
+        final String[] statuses = {"RUNNING", "RUNNING", "RUNNING", "TERMINATED", "STAGING"};
+        final List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>(count);
+        for (int i = 0; i < count; i++) {
+            final Map<String, Object> inst = new HashMap<String, Object>();
+            inst.put("id", String.valueOf(4000000000000000000L + i));
+            inst.put("name", "instance-" + i);
+            inst.put("selfLink", "https://www.googleapis.com/compute/v1/projects/" + PROJECT + "/zones/us-central1-"
+                                 + (char) ('a' + i % 4) + "/instances/instance-" + i);
+            inst.put("status", statuses[i % statuses.length]);
+            final Map<String, Object> labels = new HashMap<String, Object>();
+            labels.put("environment", i % 3 == 0 ? "prod" : "dev");
+            labels.put("osname", "centos");
+            labels.put("osfamily", "linux");
+            inst.put("labels", labels);
+            final Map<String, Object> accessConfig = new HashMap<String, Object>();
+            accessConfig.put("natIP", "35.0." + (i >> 8 & 0xff) + "." + (i & 0xff));
+            final Map<String, Object> networkInterface = new HashMap<String, Object>();
+            networkInterface.put("networkIP", "10.0." + (i >> 8 & 0xff) + "." + (i & 0xff));
+            networkInterface.put("accessConfigs", Collections.singletonList(accessConfig));
+            inst.put("networkInterfaces", Collections.singletonList(networkInterface));
+            instances.add(inst);
+        }
+        return instances;
+    }
+
+    @Benchmark
+    public void compiledPlan(final Blackhole blackhole) throws InstanceToNodeMapper.GeneratorException {
+        for (final Map<String, Object> inst : instances) {
+            blackhole.consume(plan.toNode(inst, PROJECT));
+        }
+    }
+
+    @Benchmark
+    public void perInstanceMapping(final Blackhole blackhole) {
+        for (final Map<String, Object> inst : instances) {
+            blackhole.consume(instanceToNode(inst, mapping, PROJECT));
+        }
+    }
+
+    /**
+     * The previous instanceToNode
+     */
+    @SuppressWarnings("unchecked")
+    static INodeEntry instanceToNode(final Map<String, ?> inst, final Properties mapping, final String projectId) {
+        final NodeEntryImpl node = new NodeEntryImpl();
+        if (null != mapping.getProperty("tags.selector")) {
+            final String selector = mapping.getProperty("tags.selector");
+            final String value = applySelector(inst, selector, mapping.getProperty("tags.default"), true);
+            if (null != value) {
+                final HashSet<String> tagset = new HashSet<String>();
+                for (final String s : value.split(",")) {
+                    tagset.add(s.trim());
+                }
+                tagset.add(projectId.trim());
+                node.setTags(tagset);
+            }
+        }
+        if (null == node.getTags()) {
+            node.setTags(new HashSet());
+        }
+        final HashSet orig = new HashSet(node.getTags());
+        final Pattern tagPat = Pattern.compile("^tag\\.(.+?)\\.selector$");
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o;
+            final String[] selparts = mapping.getProperty(key).split("=");
+            final Matcher m = tagPat.matcher(key);
+            if (m.matches()) {
+                final String value = applySelector(inst, selparts[0], null, false);
+                if (null != value) {
+                    if (selparts.length > 1 && !value.equals(selparts[1])) {
+                        continue;
+                    }
+                    orig.add(m.group(1));
+                }
+            }
+        }
+        node.setTags(orig);
+
+        final Pattern attribDefPat = Pattern.compile("^([^.]+?)\\.default$");
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o;
+            final String value = mapping.getProperty(key);
+            final Matcher m = attribDefPat.matcher(key);
+            if (m.matches() && (!mapping.containsKey(key + ".selector")
+                                || "".equals(mapping.getProperty(key + ".selector")))) {
+                if (null != value) {
+                    node.getAttributes().put(m.group(1), value);
+                }
+                node.getAttributes().put("projectId", projectId);
+            }
+        }
+
+        final Pattern attribPat = Pattern.compile("^([^.]+?)\\.selector$");
+        for (final Object o : mapping.keySet()) {
+            final String key = (String) o;
+            final Matcher m = attribPat.matcher(key);
+            if (m.matches() && !"tags".equals(m.group(1))) {
+                final String value = applySelector(inst, mapping.getProperty(key),
+                                                   mapping.getProperty(m.group(1) + ".default"), false);
+                if (null != value) {
+                    node.getAttributes().put(m.group(1), value);
+                }
+            }
+        }
+
+        String name = node.getNodename();
+        if (null == name || "".equals(name)) {
+            name = node.getHostname();
+        }
+        if (null == name || "".equals(name)) {
+            name = String.valueOf(inst.get("id"));
+        }
+        node.setNodename(name);
+        return node;
+    }
+
+    private static String applySelector(final Map<String, ?> inst, final String selector, final String defaultValue,
+                                        final boolean tagMerge) {
+        for (final String selPart : selector.split(",")) {
+            if (tagMerge) {
+                final StringBuilder sb = new StringBuilder();
+                for (final String subPart : selPart.split(Pattern.quote("|"))) {
+                    final String val = Selector.compile(subPart).apply(inst);
+                    if (null != val) {
+                        if (sb.length() > 0) {
+                            sb.append(",");
+                        }
+                        sb.append(val);
+                    }
+                }
+                if (sb.length() > 0) {
+                    return sb.toString();
+                }
+            } else {
+                final String val = Selector.compile(selPart).apply(inst);
+                if (null != val) {
+                    return val;
+                }
+            }
+        }
+        return defaultValue;
+    }
+}
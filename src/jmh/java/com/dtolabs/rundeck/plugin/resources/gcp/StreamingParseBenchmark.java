@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* StreamingParseBenchmark.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.google.api.services.compute.model.Instance;
+import com.google.api.services.compute.model.InstanceAggregatedList;
+import com.google.api.services.compute.model.InstancesScopedList;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshing the nodes from the aggregatedList pages of a project with the default mapping. {@link #fullParse} parses
+ * the pages into {@link InstanceAggregatedList}s and keeps their {@link Instance}s until all of them are mapped, as
+ * before. {@link #streamingParse} parses each page with {@link AggregatedListParser} and maps it right away, as the
+ * page handlers do, so only the pages being parsed are held besides the nodes.
+ * <p/>
+ * The pages are recorded once per trial by serializing instances with the Compute client, {@link #PAGE_SIZE} per page
+ * over four zones. Both benchmarks parse the same full responses, without the fields parameter the requests now send,
+ * so the server side mask is not counted. Run with {@code -prof gc} for the allocations; the heap retained at the peak
+ * of each refresh besides the nodes, and by the nodes themselves, is printed at the start of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StreamingParseBenchmark {
+    static final int PAGE_SIZE = 500;
+    private static final String PROJECT = "benchmark";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"10000", "50000"})
+    public int instanceCount;
+
+    private List<byte[]> pages;
+    private MappingPlan plan;
+    private AggregatedListParser parser;
+
+    @Setup
+    public void setUp() throws Exception {
+        pages = new ArrayList<byte[]>();
+        for (int from = 0; from < instanceCount; from += PAGE_SIZE) {
+            final Map<String, InstancesScopedList> items = new LinkedHashMap<String, InstancesScopedList>();
+            for (int i = from; i < Math.min(from + PAGE_SIZE, instanceCount); i++) {
+                final String scope = "zones/us-central1-" + (char) ('a' + i % 4);
+                InstancesScopedList scoped = items.get(scope);
+                if (null == scoped) {
+                    scoped = new InstancesScopedList().setInstances(new ArrayList<Instance>());
+                    items.put(scope, scoped);
+                }
+                scoped.getInstances().add(InstanceIdSetBenchmark.instance(i));
+            }
+            final InstanceAggregatedList page = new InstanceAggregatedList()
+                    .setKind("compute#instanceAggregatedList")
+                    .setId("projects/benchmark/aggregated/instances")
+                    .setSelfLink("https://www.googleapis.com/compute/v1/projects/benchmark/aggregated/instances")
+                    .setItems(items);
+            if (from + PAGE_SIZE < instanceCount) {
+                page.setNextPageToken("page-" + (from + PAGE_SIZE));
+            }
+            pages.add(ComputeClients.JSON_FACTORY.toByteArray(page));
+        }
+        final Properties mapping = new Properties();
+        final InputStream in = StreamingParseBenchmark.class.getResourceAsStream("/defaultMapping.properties");
+        try {
+            mapping.load(in);
+        } finally {
+            in.close();
+        }
+        plan = MappingPlan.compile(mapping);
+        parser = new AggregatedListParser(ComputeClients.JSON_FACTORY, InstanceFieldMask.instanceFields(plan));
+
+        long size = 0;
+        for (final byte[] page : pages) {
+            size += page.length;
+        }
+        System.out.println();
+        System.out.println(instanceCount + " instances, " + pages.size() + " pages, " + size / 1024 + " KB");
+        System.out.println("fullParse, all instances:    " + retainedKB(new Parse() {
+            Object parse() throws IOException {
+                return parseAll();
+            }
+        }) + " KB");
+        final long streamed = retainedKB(new Parse() {
+            Object parse() throws IOException {
+                final List<Object> parsed = new ArrayList<Object>();
+                for (final byte[] page : pages) {
+                    parsed.add(parsePage(page));
+                }
+                return parsed;
+            }
+        });
+        System.out.println("streamingParse, all pages:   " + streamed + " KB");
+        System.out.println("streamingParse, per page:    " + streamed / pages.size() + " KB");
+        System.out.println("nodes:                       " + retainedKB(new Parse() {
+            Object parse() throws IOException, InstanceToNodeMapper.GeneratorException {
+                return streamingParse();
+            }
+        }) + " KB");
+    }
+
+    private abstract static class Parse {
+        abstract Object parse() throws IOException, InstanceToNodeMapper.GeneratorException;
+    }
+
+    /**
+     * Used heap while the parsed value is referenced, less the used heap once it is not
+     */
+    private static long retainedKB(final Parse parse) throws IOException, InstanceToNodeMapper.GeneratorException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Object parsed = parse.parse();
+        collect(memory);
+        final long used = memory.getHeapMemoryUsage().getUsed();
+        if (null == parsed) {
+            throw new IllegalStateException();
+        }
+        parsed = null;
+        collect(memory);
+        return (used - memory.getHeapMemoryUsage().getUsed()) / 1024;
+    }
+
+    private static void collect(final MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) {
+            memory.gc();
+        }
+    }
+
+    private List<Instance> parseAll() throws IOException {
+        final List<Instance> instances = new ArrayList<Instance>();
+        for (final byte[] page : pages) {
+            final InstanceAggregatedList list = ComputeClients.JSON_FACTORY.fromInputStream(
+                    new ByteArrayInputStream(page), UTF8, InstanceAggregatedList.class);
+            for (final InstancesScopedList scoped : list.getItems().values()) {
+                if (null != scoped.getInstances()) {
+                    instances.addAll(scoped.getInstances());
+                }
+            }
+        }
+        return instances;
+    }
+
+    private Collection<List<? extends Map<String, Object>>> parsePage(final byte[] page) throws IOException {
+        return parser.parse(new ByteArrayInputStream(page), UTF8).getScopes().values();
+    }
+
+    @Benchmark
+    public List<INodeEntry> fullParse() throws IOException, InstanceToNodeMapper.GeneratorException {
+        final List<Instance> instances = parseAll();
+        final List<INodeEntry> nodes = new ArrayList<INodeEntry>(instances.size());
+        for (final Instance inst : instances) {
+            nodes.add(plan.toNode(inst, PROJECT));
+        }
+        return nodes;
+    }
+
+    @Benchmark
+    public List<INodeEntry> streamingParse() throws IOException, InstanceToNodeMapper.GeneratorException {
+        final List<INodeEntry> nodes = new ArrayList<INodeEntry>();
+        for (final byte[] page : pages) {
+            for (final List<? extends Map<String, Object>> scoped : parsePage(page)) {
+                for (final Map<String, Object> inst : scoped) {
+                    nodes.add(plan.toNode(inst, PROJECT));
+                }
+            }
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* AggregatedListParser.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * AggregatedListParser reads an instances aggregatedList or list response token by token, keeping only the instance
+ * fields the mapping needs.
+ * <p/>
+ * Each instance becomes a small map of those fields instead of an
+ * {@link com.google.api.services.compute.model.Instance} with its typed nested objects, and everything else in the
+ * response is skipped without being materialized. Nested fields are selected as in the "fields" parameter, so a
+ * response carrying more than was asked for, e.g. the whole metadata for "metadata(fingerprint)", is parsed down to
+ * the same instances.
+ */
+class AggregatedListParser {
+    private final JsonFactory jsonFactory;
+    private final Map<String, Object> instanceFields;
+
+    /**
+     * @param instanceFields instance fields to keep, as in the "fields" parameter, e.g. "id,name,metadata(fingerprint)"
+     */
+    AggregatedListParser(final JsonFactory jsonFactory, final String instanceFields) {
+        this.jsonFactory = jsonFactory;
+        this.instanceFields = InstanceFieldMask.fieldTree(instanceFields);
+    }
+
+    /**
+     * Parse one page of the aggregatedList response and close the stream
+     */
+    InstancePage parse(final InputStream content, final Charset charset) throws IOException {
+        return parsePage(content, charset, null);
+    }
+
+    /**
+     * Parse one page of the instances list response of a single scope, e.g. "zones/us-central1-a", and close the stream
+     */
+    InstancePage parseList(final InputStream content, final Charset charset, final String scope) throws IOException {
+        return parsePage(content, charset, scope);
+    }
+
+    /**
+     * @param scope the scope of a list response, or null for an aggregatedList response
+     */
+    private InstancePage parsePage(final InputStream content, final Charset charset, final String scope)
+        throws IOException {
+        final JsonParser parser = jsonFactory.createJsonParser(content, charset);
+        try {
+            final Map<String, List<? extends Map<String, Object>>> scopes =
+                    new LinkedHashMap<String, List<? extends Map<String, Object>>>();
+            final Map<String, InstancePage.Warning> warnings = new HashMap<String, InstancePage.Warning>();
+            String nextPageToken = null;
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if ("items".equals(name) && null != scope) {
+                    scopes.put(scope, parseInstances(parser));
+                } else if ("items".equals(name)) {
+                    parseItems(parser, scopes, warnings);
+                } else if ("nextPageToken".equals(name)) {
+                    nextPageToken = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            return new InstancePage(scopes, warnings, nextPageToken);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private void parseItems(final JsonParser parser, final Map<String, List<? extends Map<String, Object>>> scopes,
+                            final Map<String, InstancePage.Warning> warnings) throws IOException {
+        expect(parser.getCurrentToken(), JsonToken.START_OBJECT);
+        while (JsonToken.FIELD_NAME == parser.nextToken()) {
+            final String scope = parser.getCurrentName();
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if ("instances".equals(name)) {
+                    scopes.put(scope, parseInstances(parser));
+                } else if ("warning".equals(name) && JsonToken.START_OBJECT == parser.getCurrentToken()) {
+                    final Map<?, ?> warning = (Map<?, ?>) readValue(parser, null);
+                    warnings.put(scope, new InstancePage.Warning(String.valueOf(warning.get("code")),
+                                                                 String.valueOf(warning.get("message"))));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private List<Map<String, Object>> parseInstances(final JsonParser parser) throws IOException {
+        expect(parser.getCurrentToken(), JsonToken.START_ARRAY);
+        final List<Map<String, Object>> instances = new ArrayList<Map<String, Object>>();
+        while (JsonToken.START_OBJECT == parser.nextToken()) {
+            final Map<String, Object> instance = new HashMap<String, Object>();
+            while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                final String name = parser.getCurrentName();
+                parser.nextToken();
+                if (instanceFields.containsKey(name)) {
+                    instance.put(name, readValue(parser, subfields(instanceFields, name)));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            instances.add(instance);
+        }
+        return instances;
+    }
+
+    /**
+     * Read the value at the current token as maps, lists, strings, numbers and booleans
+     *
+     * @param fields the fields to keep in the objects of the value, or null to keep all of them
+     */
+    private static Object readValue(final JsonParser parser, final Map<String, Object> fields) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT:
+                final Map<String, Object> map = new LinkedHashMap<String, Object>();
+                while (JsonToken.FIELD_NAME == parser.nextToken()) {
+                    final String name = parser.getCurrentName();
+                    parser.nextToken();
+                    if (null == fields) {
+                        map.put(name, readValue(parser, null));
+                    } else if (fields.containsKey(name)) {
+                        map.put(name, readValue(parser, subfields(fields, name)));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                return map;
+            case START_ARRAY:
+                //the fields apply to each element
+                final List<Object> list = new ArrayList<Object>();
+                while (JsonToken.END_ARRAY != parser.nextToken()) {
+                    list.add(readValue(parser, fields));
+                }
+                return list;
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getBigIntegerValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDecimalValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> subfields(final Map<String, Object> fields, final String name) {
+        return (Map<String, Object>) fields.get(name);
+    }
+
+    private static void expect(final JsonToken actual, final JsonToken expected) throws IOException {
+        if (expected != actual) {
+            throw new IOException("Unexpected JSON token in instance list: " + actual + ", expected " + expected);
+        }
+    }
+}
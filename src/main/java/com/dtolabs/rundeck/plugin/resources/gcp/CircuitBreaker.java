@@ -0,0 +1,105 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* CircuitBreaker.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+/**
+ * CircuitBreaker stops the queries of a project after consecutive failures, so a failing API is not queried on every
+ * refresh.
+ * <p/>
+ * After {@code failureThreshold} failures in a row the breaker opens and queries fail right away. Once the probe
+ * interval has passed, a single query is let through: if it succeeds the breaker closes, otherwise it stays open for
+ * another interval.
+ */
+class CircuitBreaker {
+    static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    static final long DEFAULT_PROBE_INTERVAL = 5 * 60 * 1000L;
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private long probeInterval;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_PROBE_INTERVAL);
+    }
+
+    CircuitBreaker(final int failureThreshold, final long probeInterval) {
+        this.failureThreshold = failureThreshold;
+        this.probeInterval = probeInterval;
+    }
+
+    synchronized void setProbeInterval(final long probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    /**
+     * Return true if a query may be made now. When the breaker is open and the probe interval has passed, this lets
+     * the probe query through.
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= probeInterval) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                //the probe is still running
+                return false;
+        }
+    }
+
+    synchronized void recordSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    synchronized void recordFailure() {
+        failures++;
+        if (State.HALF_OPEN == state || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized int getFailures() {
+        return failures;
+    }
+
+    /**
+     * Milliseconds until the next probe is let through, 0 unless the breaker is open
+     */
+    synchronized long getRetryDelay() {
+        return State.OPEN == state ? Math.max(0, openedAt + probeInterval - System.currentTimeMillis()) : 0;
+    }
+}
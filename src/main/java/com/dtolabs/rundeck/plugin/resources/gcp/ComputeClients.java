@@ -0,0 +1,116 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* ComputeClients.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.compute.Compute;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ComputeClients holds the Compute clients shared by every node source in the JVM.
+ * <p/>
+ * All clients use a single HTTP transport, so the trust store is loaded once and connections are kept alive and reused
+ * across refreshes. There is one client per credential file, replaced when the credential read from the file changes;
+ * its requests are rate limited and retried by a {@link ComputeRequestInitializer}.
+ */
+class ComputeClients {
+    /**
+     * Be sure to specify the name of your application. If the application name is {@code null} or
+     * blank, the application will log a warning. Suggested format is "MyCompany-ProductName/1.0".
+     */
+    static final String APPLICATION_NAME = "rundeck-gcp-nodes-plugin";
+
+    /** Global instance of the JSON factory. */
+    static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+
+    private static final ConcurrentMap<String, Client> clients = new ConcurrentHashMap<String, Client>();
+
+    private ComputeClients() {
+    }
+
+    /**
+     * Lazily created global instance of the HTTP transport
+     */
+    private static class TransportHolder {
+        static final HttpTransport HTTP_TRANSPORT = newTransport();
+
+        private static HttpTransport newTransport() {
+            try {
+                return GoogleNetHttpTransport.newTrustedTransport();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to create the HTTP transport", e);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to create the HTTP transport", e);
+            }
+        }
+    }
+
+    /**
+     * Return the shared HTTP transport
+     */
+    static HttpTransport transport() {
+        return TransportHolder.HTTP_TRANSPORT;
+    }
+
+    /**
+     * Return the Compute client for the credential file, creating it the first time and whenever the credential has
+     * changed
+     *
+     * @param credentialKey identifies the credential, e.g. the path of its key file
+     * @param credential    the current credential of the file, not null
+     */
+    static Compute forCredential(final String credentialKey, final GoogleCredential credential) {
+        Client client = clients.get(credentialKey);
+        while (null == client || client.credential != credential) {
+            final Client created = new Client(credential, newClient(credentialKey, credential));
+            if (null == client ? null == clients.putIfAbsent(credentialKey, created)
+                               : clients.replace(credentialKey, client, created)) {
+                return created.compute;
+            }
+            client = clients.get(credentialKey);
+        }
+        return client.compute;
+    }
+
+    private static class Client {
+        final GoogleCredential credential;
+        final Compute compute;
+
+        Client(final GoogleCredential credential, final Compute compute) {
+            this.credential = credential;
+            this.compute = compute;
+        }
+    }
+
+    private static Compute newClient(final String credentialKey, final GoogleCredential credential) {
+        return new Compute.Builder(transport(), JSON_FACTORY, new ComputeRequestInitializer(credentialKey, credential))
+                .setApplicationName(APPLICATION_NAME)
+                .build();
+    }
+}
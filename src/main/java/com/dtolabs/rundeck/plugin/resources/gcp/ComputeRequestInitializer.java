@@ -0,0 +1,191 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* ComputeRequestInitializer.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * ComputeRequestInitializer authorizes every Compute API request with the credential, makes it wait for the
+ * {@link RateLimiter} of its project, and retries it when the quota is exceeded or the server fails.
+ * <p/>
+ * Rate limited responses (429, or 403 with a rateLimitExceeded reason) and 5xx responses are retried with exponential
+ * backoff and jitter, or after the Retry-After delay when the response has one. A rate limited response also holds off
+ * the other requests to the same project for that delay.
+ */
+class ComputeRequestInitializer implements HttpRequestInitializer {
+    static final Logger logger = Logger.getLogger(ComputeRequestInitializer.class);
+    static final int MAX_RETRIES = 8;
+    private static final long MAX_RETRY_AFTER_MILLIS = 60 * 1000L;
+
+    private final String credentialKey;
+    private final GoogleCredential credential;
+
+    /**
+     * @param credentialKey identifies the credential, e.g. the path of its key file
+     * @param credential    the credential, or null for unauthenticated requests
+     */
+    ComputeRequestInitializer(final String credentialKey, final GoogleCredential credential) {
+        this.credentialKey = credentialKey;
+        this.credential = credential;
+    }
+
+    public void initialize(final HttpRequest request) throws IOException {
+        if (null != credential) {
+            credential.initialize(request);
+        }
+        request.setNumberOfRetries(MAX_RETRIES);
+        request.setInterceptor(new HttpExecuteInterceptor() {
+            public void intercept(final HttpRequest request) throws IOException {
+                final RateLimiter limiter = limiter(request);
+                if (null != limiter) {
+                    limiter.acquire();
+                }
+                if (null != credential) {
+                    credential.intercept(request);
+                }
+            }
+        });
+        request.setUnsuccessfulResponseHandler(new RetryHandler());
+    }
+
+    /**
+     * The limiter of the project in the request URL, e.g. ".../projects/my-project/zones", or null for requests without
+     * a project, such as the envelope of a batch request, whose parts each take a permit of their own
+     */
+    private RateLimiter limiter(final HttpRequest request) {
+        final String projectId = projectOf(request.getUrl());
+        return null != projectId ? RateLimiter.forKey(credentialKey, projectId) : null;
+    }
+
+    static String projectOf(final GenericUrl url) {
+        final List<String> parts = null != url ? url.getPathParts() : null;
+        if (null != parts) {
+            for (int i = 0; i < parts.size() - 1; i++) {
+                if ("projects".equals(parts.get(i))) {
+                    return parts.get(i + 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Let the credential refresh an expired token, then retry rate limited and server error responses. Created for
+     * each request, so each has its own backoff.
+     */
+    private class RetryHandler implements HttpUnsuccessfulResponseHandler {
+        private final BackOff backOff = new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(500)
+                .setMultiplier(2)
+                .setRandomizationFactor(0.5)
+                .setMaxIntervalMillis(30 * 1000)
+                .setMaxElapsedTimeMillis(2 * 60 * 1000)
+                .build();
+
+        public boolean handleResponse(final HttpRequest request, final HttpResponse response,
+                                      final boolean supportsRetry) throws IOException {
+            if (null != credential && credential.handleResponse(request, response, supportsRetry)) {
+                return true;
+            }
+            if (!supportsRetry) {
+                return false;
+            }
+            final int status = response.getStatusCode();
+            final boolean rateLimited = 429 == status || (403 == status && isRateLimitError(response));
+            if (!rateLimited && status < 500) {
+                return false;
+            }
+            long delay = retryAfterMillis(response);
+            if (delay < 0) {
+                delay = backOff.nextBackOffMillis();
+                if (BackOff.STOP == delay) {
+                    return false;
+                }
+            }
+            final RateLimiter limiter = limiter(request);
+            if (null != limiter) {
+                limiter.retried();
+            }
+            logger.warn("Compute API responded " + status + " to " + request.getUrl().getRawPath() + ", retrying in "
+                        + delay + "ms");
+            if (rateLimited && null != limiter) {
+                //the next attempt waits in the interceptor, along with every other request to the project
+                limiter.holdOff(delay);
+            } else {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting to retry a Compute API request");
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Return true if a 403 response is a rate limit error. Other 403 errors are thrown right away, as the error body
+     * has been read.
+     */
+    private static boolean isRateLimitError(final HttpResponse response) throws IOException {
+        final GoogleJsonResponseException error = GoogleJsonResponseException.from(ComputeClients.JSON_FACTORY,
+                                                                                   response);
+        final GoogleJsonError details = error.getDetails();
+        if (null != details && null != details.getErrors()) {
+            for (final GoogleJsonError.ErrorInfo info : details.getErrors()) {
+                if ("rateLimitExceeded".equals(info.getReason()) || "userRateLimitExceeded".equals(info.getReason())) {
+                    return true;
+                }
+            }
+        }
+        throw error;
+    }
+
+    /**
+     * The Retry-After delay of the response in milliseconds, or -1 if there is none
+     */
+    static long retryAfterMillis(final HttpResponse response) {
+        final String retryAfter = response.getHeaders().getRetryAfter();
+        if (null != retryAfter) {
+            try {
+                return Math.min(MAX_RETRY_AFTER_MILLIS, Math.max(0, Long.parseLong(retryAfter.trim()) * 1000));
+            } catch (NumberFormatException e) {
+                //an HTTP date, use the backoff instead
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* CredentialRegistry.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.services.compute.ComputeScopes;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CredentialRegistry holds one credential per service account key file for every node source in the JVM.
+ * <p/>
+ * A key file is read again only when its modification time or size has changed, checked at most every
+ * {@link #CHECK_INTERVAL} ms. The access token of each credential is refreshed in the background
+ * {@link #REFRESH_AHEAD} ms before it expires, so Compute API requests never wait for the token endpoint. Credentials
+ * which have not been asked for in {@link #IDLE_TIMEOUT} ms are dropped, and their tokens no longer refreshed.
+ */
+class CredentialRegistry {
+    static final Logger logger = Logger.getLogger(CredentialRegistry.class);
+    static final long CHECK_INTERVAL = 30 * 1000L;
+    static final long REFRESH_AHEAD = 5 * 60 * 1000L;
+    static final long RETRY_DELAY = 60 * 1000L;
+    static final long IDLE_TIMEOUT = 2 * 60 * 60 * 1000L;
+
+    private static final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "gcp-nodes-token-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private CredentialRegistry() {
+    }
+
+    /**
+     * Return the credential of the key file, reading the file the first time and whenever it has changed
+     *
+     * @return the credential, or null if the file cannot be read and no credential was read from it before
+     */
+    static GoogleCredential credential(final String path) {
+        return credential(path, System.currentTimeMillis());
+    }
+
+    /**
+     * Return the credential of the key file as of the given time, e.g. for tests
+     */
+    static GoogleCredential credential(final String path, final long now) {
+        Entry entry = entries.get(path);
+        if (null == entry || now - entry.checked >= CHECK_INTERVAL) {
+            entry = check(path, now);
+        }
+        entry.used = now;
+        return entry.credential;
+    }
+
+    private static synchronized Entry check(final String path, final long now) {
+        final Entry entry = entries.get(path);
+        if (null != entry && now - entry.checked < CHECK_INTERVAL) {
+            return entry;
+        }
+        final File file = new File(path);
+        final long modified = file.lastModified();
+        final long length = file.length();
+        if (null != entry && entry.modified == modified && entry.length == length) {
+            entry.checked = now;
+            return entry;
+        }
+        final GoogleCredential loaded = load(file);
+        if (null == loaded && null != entry && null != entry.credential) {
+            //e.g. the file is being replaced, keep the credential and read the file again at the next check
+            logger.warn("Keeping the credential previously read from " + path);
+            entry.checked = now;
+            return entry;
+        }
+        final Entry next = new Entry(path, loaded, modified, length, now);
+        entries.put(path, next);
+        if (null != loaded) {
+            if (null != entry) {
+                logger.info("Credential file " + path + " has changed, using the new credential");
+            }
+            scheduleRefresh(next, 0);
+        }
+        return next;
+    }
+
+    private static GoogleCredential load(final File file) {
+        if (!file.isFile()) {
+            logger.error("Credential file " + file + " does not exist");
+            return null;
+        }
+        try {
+            final InputStream in = new FileInputStream(file);
+            try {
+                return GoogleCredential.fromStream(in).createScoped(
+                        Collections.singleton(ComputeScopes.COMPUTE_READONLY));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.error("Unable to read credential file " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void scheduleRefresh(final Entry entry, final long delay) {
+        refresher.schedule(new Runnable() {
+            public void run() {
+                refresh(entry);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get a new access token and schedule the next refresh ahead of its expiry, unless the entry has been replaced by
+     * a changed file or is no longer used
+     */
+    private static void refresh(final Entry entry) {
+        if (entries.get(entry.path) != entry) {
+            return;
+        }
+        if (System.currentTimeMillis() - entry.used > IDLE_TIMEOUT) {
+            entries.remove(entry.path, entry);
+            logger.debug("Credential file " + entry.path + " is no longer used");
+            return;
+        }
+        long delay = RETRY_DELAY;
+        try {
+            if (entry.credential.refreshToken()) {
+                final Long expiresIn = entry.credential.getExpiresInSeconds();
+                if (null != expiresIn) {
+                    delay = Math.max(RETRY_DELAY, expiresIn * 1000 - REFRESH_AHEAD);
+                }
+            } else {
+                logger.warn("No access token for credential file " + entry.path + ", retrying in " + delay / 1000
+                            + "s");
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to refresh the access token for credential file " + entry.path + ", retrying in "
+                        + delay / 1000 + "s: " + e.getMessage());
+        }
+        scheduleRefresh(entry, delay);
+    }
+
+    /**
+     * A key file and the credential read from it, null if it could not be read
+     */
+    private static class Entry {
+        final String path;
+        final GoogleCredential credential;
+        final long modified;
+        final long length;
+        volatile long checked;
+        volatile long used;
+
+        Entry(final String path, final GoogleCredential credential, final long modified, final long length,
+              final long checked) {
+            this.path = path;
+            this.credential = credential;
+            this.modified = modified;
+            this.length = length;
+            this.checked = checked;
+            this.used = checked;
+        }
+    }
+}
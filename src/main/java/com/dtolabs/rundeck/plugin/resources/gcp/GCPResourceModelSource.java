@@ -44,18 +44,34 @@ import com.dtolabs.rundeck.core.resources.ResourceModelSourceException;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 /**
- * GCPResourceModelSource produces nodes by querying the GCP Compute Engine API to list instances.
+ * GCPResourceModelSource produces nodes by querying the GCP Compute Engine API to list instances. The project id may be
+ * a list of projects, which are queried in parallel by a {@link MultiProjectQuery} and merged into one node set.
  * <p/>
  * The RunDeck node definitions are created from the instances on a mapping system to convert properties of the amazon
  * instances to attributes defined on the nodes.
  * <p/>
- * The Compute Engine requests are performed asynchronously, so the first request to {@link #getNodes()} will return null, and
- * subsequent requests may return the data when it's available.
+ * The first request to {@link #getNodes()} waits for the Compute Engine query. Later refreshes are performed
+ * asynchronously on the mapper's executor, at most one at a time, and the previous nodes are returned without locking
+ * until the new data is available. Unless disabled, the {@link RefreshScheduler} starts the refreshes ahead of the
+ * refresh interval, so requests do not have to. The last good nodes are also kept in a {@link NodeSnapshotStore}, and
+ * served after a restart until the first query has finished.
+ * <p/>
+ * A failed refresh keeps the previous nodes, for up to the max staleness after the last successful query. A project or
+ * zone that cannot be queried keeps its last good nodes the same way, and the time of its last good query counts as
+ * the time of the last successful query; such a refresh is not stored in the snapshot file. Stale nodes carry a
+ * {@value NodeSnapshot#STALE_SINCE_ATTRIBUTE} attribute with the time of that query, and {@link #getStalenessMillis()}
+ * reports their age. Past the max staleness, {@link #getNodes()} fails instead.
+ * <p/>
+ * A discarded source should be closed, which stops its background refreshes and cancels its queries in flight. As
+ * Rundeck does not close the sources it replaces, those stop refreshing once they are garbage collected.
  *
  * @author James Coppens <a href="mailto:jameshcoppens@gmail.com">jameshcoppens@gmail.com</a>
  *
@@ -64,25 +80,46 @@ import java.util.concurrent.Future;
  * <p/>
  * @author Glen Yu <a href="mailto:glen.yu@gmail.com">glen.yu@gmail.com</a>
  */
-public class GCPResourceModelSource implements ResourceModelSource {
+public class GCPResourceModelSource implements ResourceModelSource, Closeable {
     static Logger logger = Logger.getLogger(GCPResourceModelSource.class);
     private String projectId;
     long refreshInterval = 30000;
-    long lastRefresh = 0;
     String filterParams;
     String mappingParams;
     File mappingFile;
     boolean useDefaultMapping = true;
     boolean runningOnly = true;
     boolean queryAsync = true;
-    Future<INodeSet> futureResult = null;
+    boolean backgroundRefresh = true;
+    boolean persistSnapshot = true;
+    int mappingParallelism = 0;
+    int projectConcurrency = 4;
+    boolean streamingParse = false;
+    boolean zonalQuery = false;
+    Set<String> zones = new LinkedHashSet<String>();
+    int zoneConcurrency = 8;
+    double requestRate = RateLimiter.DEFAULT_RATE;
+    long maxStaleness = 24 * 60 * 60 * 1000L;
+    long circuitBreakerProbeInterval = CircuitBreaker.DEFAULT_PROBE_INTERVAL;
+    boolean incrementalRefresh = false;
+    boolean statusRefresh = false;
+    long fullResyncInterval = 60 * 60 * 1000L;
+    File snapshotDir;
+    NodeSnapshotStore snapshotStore;
     final Properties mapping = new Properties();
 
-    GoogleCredential credential;
+    /** The nodes of the last finished query, replaced as a whole so readers never need a lock */
+    private final AtomicReference<NodeSnapshot> snapshot = new AtomicReference<NodeSnapshot>();
+    /** The query currently running, if any */
+    private final AtomicReference<CompletableFuture<NodeSnapshot>> pendingRefresh =
+            new AtomicReference<CompletableFuture<NodeSnapshot>>();
+
+    /** key file used for every project, instead of the per project /etc/rundeck/rundeck-gcp-nodes-plugin-ID.json */
+    String credentialFile;
 
-    INodeSet iNodeSet;
     static final Properties defaultMapping = new Properties();
-    InstanceToNodeMapper mapper;
+    MultiProjectQuery projects;
+    private volatile boolean closed = false;
 
     static {
         final String mapping = "nodename.selector=name,id\n"
@@ -148,6 +185,10 @@ public class GCPResourceModelSource implements ResourceModelSource {
             }
         }
         refreshInterval = refreshSecs * 1000;
+        mappingParallelism = intProperty(configuration, GCPResourceModelSourceFactory.MAPPING_PARALLELISM,
+                                         mappingParallelism);
+        projectConcurrency = intProperty(configuration, GCPResourceModelSourceFactory.PROJECT_CONCURRENCY,
+                                         projectConcurrency);
         if (configuration.containsKey(GCPResourceModelSourceFactory.USE_DEFAULT_MAPPING)) {
             useDefaultMapping = Boolean.parseBoolean(configuration.getProperty(
                 GCPResourceModelSourceFactory.USE_DEFAULT_MAPPING));
@@ -156,70 +197,358 @@ public class GCPResourceModelSource implements ResourceModelSource {
             runningOnly = Boolean.parseBoolean(configuration.getProperty(
                 GCPResourceModelSourceFactory.RUNNING_ONLY));
         }
-
-        try {
-            credential = GoogleCredential.fromStream(new FileInputStream("/etc/rundeck/rundeck-gcp-nodes-plugin-" + this.projectId + ".json"))
-                    .createScoped(Collections.singleton(ComputeScopes.COMPUTE_READONLY));
-        } catch  (FileNotFoundException e) {
-            logger.error("Google Crendential failed creation");
-            System.err.println(e.getMessage());
-        } catch (Throwable t) {
-            t.printStackTrace();
+        if (configuration.containsKey(GCPResourceModelSourceFactory.BACKGROUND_REFRESH)) {
+            backgroundRefresh = Boolean.parseBoolean(configuration.getProperty(
+                GCPResourceModelSourceFactory.BACKGROUND_REFRESH));
+        }
+        if (configuration.containsKey(GCPResourceModelSourceFactory.PERSIST_SNAPSHOT)) {
+            persistSnapshot = Boolean.parseBoolean(configuration.getProperty(
+                GCPResourceModelSourceFactory.PERSIST_SNAPSHOT));
+        }
+        if (configuration.containsKey(GCPResourceModelSourceFactory.STREAMING_PARSE)) {
+            streamingParse = Boolean.parseBoolean(configuration.getProperty(
+                GCPResourceModelSourceFactory.STREAMING_PARSE));
+        }
+        if (configuration.containsKey(GCPResourceModelSourceFactory.ZONAL_QUERY)) {
+            zonalQuery = Boolean.parseBoolean(configuration.getProperty(GCPResourceModelSourceFactory.ZONAL_QUERY));
+        }
+        final String zonesStr = configuration.getProperty(GCPResourceModelSourceFactory.ZONES);
+        if (null != zonesStr) {
+            for (final String zone : zonesStr.split("[,\\s]+")) {
+                if (!"".equals(zone)) {
+                    zones.add(zone);
+                }
+            }
+        }
+        final String requestRateStr = configuration.getProperty(GCPResourceModelSourceFactory.REQUEST_RATE);
+        if (null != requestRateStr && !"".equals(requestRateStr)) {
+            try {
+                requestRate = Double.parseDouble(requestRateStr);
+            } catch (NumberFormatException e) {
+                logger.warn(GCPResourceModelSourceFactory.REQUEST_RATE + " value is not valid: " + requestRateStr);
+            }
+        }
+        maxStaleness = intProperty(configuration, GCPResourceModelSourceFactory.MAX_STALENESS,
+                                   (int) (maxStaleness / 1000)) * 1000L;
+        circuitBreakerProbeInterval = intProperty(configuration,
+                                                  GCPResourceModelSourceFactory.CIRCUIT_BREAKER_PROBE_INTERVAL,
+                                                  (int) (circuitBreakerProbeInterval / 1000)) * 1000L;
+        if (configuration.containsKey(GCPResourceModelSourceFactory.INCREMENTAL_REFRESH)) {
+            incrementalRefresh = Boolean.parseBoolean(configuration.getProperty(
+                GCPResourceModelSourceFactory.INCREMENTAL_REFRESH));
+        }
+        if (configuration.containsKey(GCPResourceModelSourceFactory.STATUS_REFRESH)) {
+            statusRefresh = Boolean.parseBoolean(configuration.getProperty(
+                GCPResourceModelSourceFactory.STATUS_REFRESH));
+        }
+        fullResyncInterval = intProperty(configuration, GCPResourceModelSourceFactory.FULL_RESYNC_INTERVAL,
+                                         (int) (fullResyncInterval / 1000)) * 1000L;
+        zoneConcurrency = intProperty(configuration, GCPResourceModelSourceFactory.ZONE_CONCURRENCY, zoneConcurrency);
+        final String snapshotDirPath = configuration.getProperty(GCPResourceModelSourceFactory.SNAPSHOT_DIR);
+        if (null != snapshotDirPath && !"".equals(snapshotDirPath)) {
+            snapshotDir = new File(snapshotDirPath);
+        }
+        final String credentialFilePath = configuration.getProperty(GCPResourceModelSourceFactory.CREDENTIAL_FILE);
+        if (null != credentialFilePath && !"".equals(credentialFilePath)) {
+            credentialFile = credentialFilePath;
         }
 
         initialize();
     }
 
+    private static int intProperty(final Properties configuration, final String name, final int defaultValue) {
+        final String value = configuration.getProperty(name);
+        if (null != value && !"".equals(value)) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                logger.warn(name + " value is not valid: " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * The project ids of the source, configured as a comma or space separated list
+     */
+    static List<String> projectIds(final String projectId) {
+        final List<String> ids = new ArrayList<String>();
+        if (null != projectId) {
+            for (final String id : projectId.split("[,\\s]+")) {
+                if (!"".equals(id)) {
+                    ids.add(id);
+                }
+            }
+        }
+        if (ids.isEmpty()) {
+            ids.add(String.valueOf(projectId));
+        }
+        return ids;
+    }
+
     private void initialize() {
         final ArrayList<String> params = new ArrayList<String>();
         if (null != filterParams) {
             Collections.addAll(params, filterParams.split(";"));
         }
         loadMapping();
-        mapper = new InstanceToNodeMapper(credential, mapping);
-        mapper.setProjectId(projectId);
-        mapper.setFilterParams(params);
-        mapper.setRunningStateOnly(runningOnly);
+        final List<InstanceToNodeMapper> mappers = new ArrayList<InstanceToNodeMapper>();
+        for (final String id : projectIds(projectId)) {
+            final String keyFile = null != credentialFile ? credentialFile
+                                                          : "/etc/rundeck/rundeck-gcp-nodes-plugin-" + id + ".json";
+            final InstanceToNodeMapper mapper = new InstanceToNodeMapper(keyFile, mapping);
+            mapper.setProjectId(id);
+            mapper.setFilterParams(params);
+            mapper.setRunningStateOnly(runningOnly);
+            mapper.setMappingParallelism(mappingParallelism);
+            mapper.setStreamingParse(streamingParse);
+            mapper.setZonalQuery(zonalQuery);
+            mapper.setZoneAllowlist(zones);
+            mapper.setZoneConcurrency(zoneConcurrency);
+            mapper.getRateLimiter().setRate(requestRate);
+            mapper.getCircuitBreaker().setProbeInterval(circuitBreakerProbeInterval);
+            mapper.setMaxScopeStaleness(maxStaleness);
+            mapper.setIncrementalRefresh(incrementalRefresh);
+            mapper.setStatusRefresh(statusRefresh);
+            mapper.setFullResyncInterval(fullResyncInterval);
+            //as much as the scheduled refreshes may be ahead of the interval
+            mapper.setListingReuseWindow(refreshInterval / 10);
+            mappers.add(mapper);
+        }
+        projects = new MultiProjectQuery(mappers, projectConcurrency);
+        if (persistSnapshot) {
+            snapshotStore = NodeSnapshotStore.forSource(snapshotDir, projectId, snapshotKey());
+            loadSnapshot();
+        }
+        if (backgroundRefresh && queryAsync) {
+            RefreshScheduler.register(this, refreshInterval, refreshPhaseKey());
+        }
+    }
+
+    /**
+     * The projects and credential of the source: sources with the same ones are refreshed at the same time, so that
+     * they can share their instance listings
+     */
+    private String refreshPhaseKey() {
+        return credentialFile + "\n" + new TreeSet<String>(projectIds(projectId));
+    }
+
+    /**
+     * Everything besides the project which determines the nodes of this source, including the credential as it
+     * determines which instances are visible
+     */
+    private String snapshotKey() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(credentialFile).append('\n').append(filterParams).append('\n').append(runningOnly).append('\n');
+        if (!zones.isEmpty()) {
+            sb.append(zones).append('\n');
+        }
+        for (final String key : new TreeSet<String>(mapping.stringPropertyNames())) {
+            sb.append(key).append('=').append(mapping.getProperty(key)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Serve the nodes stored by the previous run until the first query finishes. The snapshot is published as
+     * already stale, so it is refreshed right away.
+     */
+    private void loadSnapshot() {
+        final long start = System.currentTimeMillis();
+        final INodeSet nodes = snapshotStore.load();
+        if (null != nodes) {
+            final long saved = snapshotStore.getFile().lastModified();
+            snapshot.compareAndSet(null, new NodeSnapshot(NodeSnapshot.markStale(nodes, saved), 0, saved, true));
+            logger.info("Loaded " + nodes.getNodes().size() + " nodes from " + snapshotStore.getFile() + " in "
+                        + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Stop the background refreshes of the source and cancel its queries in flight. The source cannot be queried
+     * afterwards.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        RefreshScheduler.unregister(this);
+        if (null != projects) {
+            projects.close();
+        }
     }
 
-    public synchronized INodeSet getNodes() throws ResourceModelSourceException {
-        checkFuture();
-        if (!needsRefresh()) {
-            return iNodeSet;
+    public INodeSet getNodes() throws ResourceModelSourceException {
+        if (closed) {
+            throw new ResourceModelSourceException("Node source of project " + projectId + " has been closed");
         }
-        if (lastRefresh > 0 && queryAsync && null == futureResult) {
-            futureResult = mapper.performQueryAsync();
-            lastRefresh = System.currentTimeMillis();
-        } else if (!queryAsync || lastRefresh < 1) {
-            //always perform synchronous query the first time
-            iNodeSet = mapper.performQuery();
-            lastRefresh = System.currentTimeMillis();
+        final NodeSnapshot current = snapshot.get();
+        if (null == current) {
+            //always wait for the first query
+            return serve(awaitRefresh(refresh()));
+        }
+        if (needsRefresh(current)) {
+            final CompletableFuture<NodeSnapshot> refresh = refresh();
+            if (!queryAsync) {
+                return serve(awaitRefresh(refresh));
+            }
+        }
+        return serve(current);
+    }
+
+    /**
+     * Return the nodes of the snapshot, unless they are stale for longer than the max staleness
+     */
+    private INodeSet serve(final NodeSnapshot current) throws ResourceModelSourceException {
+        if (current.stale && maxStaleness > 0 && System.currentTimeMillis() - current.succeeded > maxStaleness) {
+            throw new ResourceModelSourceException("Nodes of project " + projectId + " could not be refreshed since "
+                                                   + Instant.ofEpochMilli(current.succeeded));
         }
-        return iNodeSet;
+        return current.nodes;
     }
 
     /**
-     * if any future results are pending, check if they are done and retrieve the results
+     * Milliseconds since the oldest nodes served were queried, 0 if the last refresh of every project succeeded
      */
-    private void checkFuture() {
-        if (null != futureResult && futureResult.isDone()) {
+    public long getStalenessMillis() {
+        final NodeSnapshot current = snapshot.get();
+        final long staleness = null != current && current.stale ? System.currentTimeMillis() - current.succeeded : 0;
+        return Math.max(staleness, null != projects ? projects.getStalenessMillis() : 0);
+    }
+
+    /**
+     * Refresh the given instances of a project right away and merge them into the current nodes, without listing the
+     * project, e.g. after a job changed them. A refresh in progress is waited for first.
+     *
+     * @param projectId the project of the instances, or null for the first project of the source
+     * @param instances instances as "zone/name", or instance URLs such as ".../zones/us-central1-a/instances/foo"
+     *
+     * @return the updated nodes of the source
+     */
+    public INodeSet refreshInstances(final String projectId, final Collection<String> instances)
+        throws ResourceModelSourceException {
+        final CompletableFuture<NodeSnapshot> pending = pendingRefresh.get();
+        if (null != pending) {
             try {
-                iNodeSet = futureResult.get();
-            } catch (InterruptedException e) {
-                logger.debug(e);
-            } catch (ExecutionException e) {
-                logger.warn("Error performing query: " + e.getMessage(), e);
+                awaitRefresh(pending);
+            } catch (ResourceModelSourceException e) {
+                //the previous nodes are kept, update them
             }
-            futureResult = null;
         }
+        final NodeSnapshot current = snapshot.get();
+        if (null == current) {
+            throw new ResourceModelSourceException("Nodes of project " + this.projectId + " have not been queried yet");
+        }
+        final INodeSet nodes;
+        try {
+            nodes = projects.refreshInstances(null != projectId ? projectId : projectIds(this.projectId).get(0),
+                                              instances);
+        } catch (IOException e) {
+            throw new ResourceModelSourceException("Unable to refresh instances: " + e.getMessage(), e);
+        }
+        if (!snapshot.compareAndSet(current, new NodeSnapshot(nodes, current.refreshed, current.succeeded,
+                                                              current.stale))) {
+            //a refresh finished meanwhile and replaced the nodes
+            return snapshot.get().nodes;
+        }
+        if (null != snapshotStore && !current.stale) {
+            snapshotStore.save(nodes);
+        }
+        return nodes;
     }
 
     /**
-     * Returns true if the last refresh time was longer ago than the refresh interval
+     * Start a query unless one is already running, and return the pending result
      */
-    private boolean needsRefresh() {
-        logger.warn("needsRefresh call");
-        return refreshInterval < 0 || (System.currentTimeMillis() - lastRefresh > refreshInterval);
+    CompletableFuture<NodeSnapshot> refresh() {
+        while (true) {
+            final CompletableFuture<NodeSnapshot> running = pendingRefresh.get();
+            if (null != running) {
+                return running;
+            }
+            final CompletableFuture<NodeSnapshot> result = new CompletableFuture<NodeSnapshot>();
+            if (pendingRefresh.compareAndSet(null, result)) {
+                startQuery(result);
+                return result;
+            }
+        }
+    }
+
+    private void startQuery(final CompletableFuture<NodeSnapshot> result) {
+        final long started = System.currentTimeMillis();
+        final CompletableFuture<INodeSet> query;
+        try {
+            query = projects.performQueryAsync();
+        } catch (RuntimeException e) {
+            finishQuery(result, started, null, e);
+            return;
+        }
+        query.whenComplete(new BiConsumer<INodeSet, Throwable>() {
+            public void accept(final INodeSet nodes, final Throwable error) {
+                finishQuery(result, started, nodes, error);
+            }
+        });
+    }
+
+    private void finishQuery(final CompletableFuture<NodeSnapshot> result, final long started, final INodeSet nodes,
+                             final Throwable error) {
+        final NodeSnapshot previous = snapshot.get();
+        if (closed) {
+            //cancelled, keep the nodes and snapshot file as they were
+            pendingRefresh.set(null);
+            result.completeExceptionally(null != error ? error
+                                                       : new IOException("Node source of project " + projectId
+                                                                         + " has been closed"));
+            return;
+        }
+        final long staleSince = null == error ? projects.getStaleSince() : 0;
+        if (null == error && 0 == staleSince) {
+            snapshot.set(new NodeSnapshot(nodes, started, started, false));
+            if (null != snapshotStore) {
+                snapshotStore.save(nodes);
+            }
+        } else if (null == error) {
+            //some projects or zones fell back to their last good nodes, which are neither fresh nor worth storing
+            snapshot.set(new NodeSnapshot(nodes, started, staleSince, true));
+        } else {
+            logger.warn("Error performing query: " + error.getMessage(), error);
+            if (null != previous) {
+                //keep the previous nodes until the next refresh interval
+                snapshot.set(new NodeSnapshot(previous.stale ? previous.nodes
+                                                             : NodeSnapshot.markStale(previous.nodes,
+                                                                                      previous.succeeded),
+                                              started, previous.succeeded, true));
+            }
+        }
+        pendingRefresh.set(null);
+        if (null != error && null == previous) {
+            result.completeExceptionally(error);
+        } else {
+            result.complete(snapshot.get());
+        }
+    }
+
+    private static NodeSnapshot awaitRefresh(final CompletableFuture<NodeSnapshot> refresh) throws
+        ResourceModelSourceException {
+        try {
+            return refresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResourceModelSourceException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw new ResourceModelSourceException("Error performing query: " + cause.getMessage(),
+                                                   cause instanceof Exception ? (Exception) cause
+                                                                              : new Exception(cause));
+        }
+    }
+
+    /**
+     * Returns true if the snapshot was refreshed longer ago than the refresh interval
+     */
+    private boolean needsRefresh(final NodeSnapshot current) {
+        return refreshInterval < 0 || (System.currentTimeMillis() - current.refreshed > refreshInterval);
     }
 
     private void loadMapping() {
@@ -256,4 +585,54 @@ public class GCPResourceModelSource implements ResourceModelSource {
     public void validate() throws ConfigurationException {
         logger.info("validate call");
     }
+
+    /**
+     * An immutable node set, the time of the last refresh attempt and the time the query producing the nodes was
+     * started
+     */
+    static final class NodeSnapshot {
+        /** Node attribute set on stale nodes, to the time their query started */
+        static final String STALE_SINCE_ATTRIBUTE = "gcpStaleSince";
+
+        final INodeSet nodes;
+        final long refreshed;
+        final long succeeded;
+        /** true if the last refresh failed and the nodes are from an earlier one */
+        final boolean stale;
+
+        NodeSnapshot(final INodeSet nodes, final long refreshed, final long succeeded, final boolean stale) {
+            this.nodes = nodes;
+            this.refreshed = refreshed;
+            this.succeeded = succeeded;
+            this.stale = stale;
+        }
+
+        /**
+         * Return copies of the nodes with the {@value #STALE_SINCE_ATTRIBUTE} attribute. The nodes may be shared with
+         * the node cache, so they are never changed in place.
+         */
+        static INodeSet markStale(final INodeSet nodes, final long since) {
+            final String staleSince = Instant.ofEpochMilli(since).toString();
+            final NodeSetImpl marked = new NodeSetImpl();
+            for (final INodeEntry node : nodes.getNodes()) {
+                marked.putNode(staleCopy(node, staleSince));
+            }
+            return marked;
+        }
+
+        /**
+         * Return a copy of the node with the {@value #STALE_SINCE_ATTRIBUTE} attribute, unless it already has one
+         */
+        @SuppressWarnings("unchecked")
+        static INodeEntry staleCopy(final INodeEntry node, final String staleSince) {
+            if (null != node.getAttributes() && node.getAttributes().containsKey(STALE_SINCE_ATTRIBUTE)) {
+                return node;
+            }
+            final NodeEntryImpl copy = new NodeEntryImpl();
+            copy.setAttributes(new HashMap<String, String>(node.getAttributes()));
+            copy.setTags(null != node.getTags() ? new HashSet(node.getTags()) : new HashSet());
+            copy.setAttribute(STALE_SINCE_ATTRIBUTE, staleSince);
+            return copy;
+        }
+    }
 }
@@ -37,12 +37,35 @@ import java.io.File;
 import java.util.*;
 
 /**
- * GCPResourceModelSourceFactory is the factory that can create a {@link ResourceModelSource} based on a configuration.
- * <li>mappingParams: A set of ";" separated mapping entries</li> <li>runningOnly: if "true", automatically filter the
- * instances by "instance-state-name=running"</li> <li>accessKey: API AccessKey value</li> <li>secretKey: API SecretKey
- * value</li> <li>mappingFile: Path to a java properties-formatted mapping definition file.</li> <li>refreshInterval:
- * Time in seconds used as minimum interval between calls to the AWS API.</li> <li>useDefaultMapping: if "true", base
- * all mapping definitions off the default mapping provided. </li> </ul>
+ * GCPResourceModelSourceFactory is the factory that can create a {@link ResourceModelSource} based on a configuration:
+ * <ul>
+ * <li>projectId: project, or "," separated projects, to query</li>
+ * <li>credentialFile: key file used for every project</li>
+ * <li>projectConcurrency: number of projects queried at the same time</li>
+ * <li>refreshInterval: time in seconds used as minimum interval between calls to the GCP API</li>
+ * <li>filter: ";" separated filters applied by the Compute API</li>
+ * <li>mappingParams: a set of ";" separated mapping entries</li>
+ * <li>mappingFile: path to a java properties-formatted mapping definition file</li>
+ * <li>useDefaultMapping: if "true", base all mapping definitions off the default mapping provided</li>
+ * <li>runningOnly: if "true", only include running instances</li>
+ * <li>mappingParallelism: number of threads mapping instances to nodes</li>
+ * <li>streamingParse: if "true", stream parse the instance list responses</li>
+ * <li>zonalQuery: if "true", list the instances of each zone in parallel</li>
+ * <li>zones: zones and regions to query</li>
+ * <li>zoneConcurrency: number of zones listed at the same time</li>
+ * <li>requestRate: maximum Compute API requests per second to each project</li>
+ * <li>maxStaleness: seconds the last good nodes are served when refreshes fail</li>
+ * <li>circuitBreakerProbeInterval: seconds between queries of a project whose queries keep failing</li>
+ * <li>incrementalRefresh: if "true", refresh only the instances changed by operations</li>
+ * <li>statusRefresh: if "true", refresh only the status of the instances</li>
+ * <li>fullResyncInterval: seconds between two queries listing every instance</li>
+ * <li>backgroundRefresh: if "true", refresh the nodes in the background ahead of the refresh interval</li>
+ * <li>persistSnapshot: if "true", keep the last good nodes in a local file for a fast start</li>
+ * <li>snapshotDir: directory of the snapshot files</li>
+ * </ul>
+ * Rundeck never closes the sources it discards: they stop refreshing once they are garbage collected, see
+ * {@link RefreshScheduler}. A Rundeck project may have several sources of the same GCP projects, so none is closed
+ * when another one is created.
  *
  * @author James Coppens <a href="mailto:jameshcoppens@gmail.com">jameshcoppens@gmail.com</a>
  */
@@ -58,6 +81,22 @@ public class GCPResourceModelSourceFactory implements ResourceModelSourceFactory
     public static final String MAPPING_FILE = "mappingFile";
     public static final String REFRESH_INTERVAL = "refreshInterval";
     public static final String USE_DEFAULT_MAPPING = "useDefaultMapping";
+    public static final String BACKGROUND_REFRESH = "backgroundRefresh";
+    public static final String PERSIST_SNAPSHOT = "persistSnapshot";
+    public static final String SNAPSHOT_DIR = "snapshotDir";
+    public static final String MAPPING_PARALLELISM = "mappingParallelism";
+    public static final String STREAMING_PARSE = "streamingParse";
+    public static final String CREDENTIAL_FILE = "credentialFile";
+    public static final String PROJECT_CONCURRENCY = "projectConcurrency";
+    public static final String ZONAL_QUERY = "zonalQuery";
+    public static final String ZONES = "zones";
+    public static final String ZONE_CONCURRENCY = "zoneConcurrency";
+    public static final String REQUEST_RATE = "requestRate";
+    public static final String MAX_STALENESS = "maxStaleness";
+    public static final String CIRCUIT_BREAKER_PROBE_INTERVAL = "circuitBreakerProbeInterval";
+    public static final String INCREMENTAL_REFRESH = "incrementalRefresh";
+    public static final String STATUS_REFRESH = "statusRefresh";
+    public static final String FULL_RESYNC_INTERVAL = "fullResyncInterval";
 
     public GCPResourceModelSourceFactory(final Framework framework) {
         this.framework = framework;
@@ -73,10 +112,23 @@ public class GCPResourceModelSourceFactory implements ResourceModelSourceFactory
             .name(PROVIDER_NAME)
             .title("GCP GCE Resources")
             .description("Produces nodes from GCP GCE")
-            .property(PropertyUtil.string(PROJECT_ID, "Project ID", "Project ID", false, null))
+            .property(PropertyUtil.string(PROJECT_ID, "Project ID",
+                    "Project ID. Specify multiple projects separated by \",\" to merge their nodes; nodenames found " +
+                            "in more than one project are prefixed with \"projectId/\"",
+                    false, null))
+            .property(PropertyUtil.string(CREDENTIAL_FILE, "Credential File",
+                    "Service account key file used for every project (default is " +
+                            "/etc/rundeck/rundeck-gcp-nodes-plugin-PROJECTID.json for each project)",
+                    false, null))
+            .property(PropertyUtil.integer(PROJECT_CONCURRENCY, "Project Concurrency",
+                    "Maximum number of projects queried at the same time (default is 4)", false, "4"))
             .property(PropertyUtil.integer(REFRESH_INTERVAL, "Refresh Interval",
                     "Minimum time in seconds between API requests to GCP (default is 30)", false, "30"))
-            .property(PropertyUtil.string(FILTER_PARAMS, "Filter Params", "GCP GCE filters", false, null))
+            .property(PropertyUtil.string(FILTER_PARAMS, "Filter Params",
+                    "GCP GCE filters, applied by the Compute API. Specify multiple filters in the form " +
+                            "\"field=value\" (e.g. \"labels.env=prod\") or as a filter expression (e.g. " +
+                            "\"name != test-vm\"), separated by \";\"",
+                    false, null))
             .property(PropertyUtil.string(MAPPING_PARAMS, "Mapping Params",
                     "Property mapping definitions. Specify multiple mappings in the form " +
                             "\"attributeName.selector=selector\" or \"attributeName.default=value\", " +
@@ -99,6 +151,59 @@ public class GCPResourceModelSourceFactory implements ResourceModelSourceFactory
                     "Include Running state instances only. If false, all instances will be returned that match your " +
                             "filters.",
                     false, "true"))
+            .property(PropertyUtil.integer(MAPPING_PARALLELISM, "Mapping Parallelism",
+                    "Number of threads mapping the instances to nodes (default is 0, the number of processors)", false,
+                    "0"))
+            .property(PropertyUtil.bool(STREAMING_PARSE, "Streaming Parse",
+                    "Read the instance list responses as a stream, keeping only the fields used by the mapping. " +
+                            "Uses much less memory for large projects.",
+                    false, "false"))
+            .property(PropertyUtil.bool(ZONAL_QUERY, "Per Zone Query",
+                    "List the instances of each zone separately and in parallel, instead of one aggregated list of " +
+                            "the project, so a slow zone does not hold up the others.",
+                    false, "false"))
+            .property(PropertyUtil.string(ZONES, "Zones",
+                    "Zones or regions to include, separated by \",\", e.g. \"us-central1, europe-west1-b\" " +
+                            "(default is every zone). With Per Zone Query, other zones are never queried.",
+                    false, null))
+            .property(PropertyUtil.integer(ZONE_CONCURRENCY, "Zone Concurrency",
+                    "Maximum number of zones listed at the same time by Per Zone Query (default is 8)", false, "8"))
+            .property(PropertyUtil.string(REQUEST_RATE, "Request Rate",
+                    "Maximum Compute API requests per second to each project, shared by every node source using the " +
+                            "same credential file (default is 20, 0 for no limit). Requests exceeding the quota or " +
+                            "failing with a server error are retried with backoff.",
+                    false, "20"))
+            .property(PropertyUtil.integer(MAX_STALENESS, "Max Staleness",
+                    "Seconds the last good nodes are kept when refreshes fail, marked with a gcpStaleSince " +
+                            "attribute (default is 86400, 0 for no limit). After that the source reports an error.",
+                    false, "86400"))
+            .property(PropertyUtil.integer(CIRCUIT_BREAKER_PROBE_INTERVAL, "Circuit Breaker Probe Interval",
+                    "After 3 failed queries in a row a project is only queried again every this many seconds, " +
+                            "until a query succeeds (default is 300)",
+                    false, "300"))
+            .property(PropertyUtil.bool(INCREMENTAL_REFRESH, "Incremental Refresh",
+                    "Between full listings, only get the instances targeted by operations since the previous " +
+                            "refresh. Not possible with raw filter expressions.",
+                    false, "false"))
+            .property(PropertyUtil.bool(STATUS_REFRESH, "Status Refresh",
+                    "Between full listings, only list the status and network interfaces of the instances, and " +
+                            "update the tags and attributes mapped from them. Ignored with Incremental Refresh.",
+                    false, "false"))
+            .property(PropertyUtil.integer(FULL_RESYNC_INTERVAL, "Full Resync Interval",
+                    "Seconds between two refreshes listing every instance, with Incremental Refresh or Status " +
+                            "Refresh (default is 3600)",
+                    false, "3600"))
+            .property(PropertyUtil.bool(BACKGROUND_REFRESH, "Background Refresh",
+                    "Refresh the nodes in the background ahead of the refresh interval. If false, the nodes are only " +
+                            "refreshed when requested after the refresh interval has passed.",
+                    false, "true"))
+            .property(PropertyUtil.bool(PERSIST_SNAPSHOT, "Persist Snapshot",
+                    "Keep the last good nodes in a local file and serve them after a restart until the first query " +
+                            "has finished.",
+                    false, "true"))
+            .property(PropertyUtil.string(SNAPSHOT_DIR, "Snapshot Directory",
+                    "Directory for the node snapshot files (default is $RDECK_BASE/var/gcp-nodes-plugin)", false,
+                    null))
 
             .build();
 
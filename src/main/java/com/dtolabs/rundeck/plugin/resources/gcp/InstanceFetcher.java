@@ -0,0 +1,109 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceFetcher.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Instance;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * InstanceFetcher gets single instances by zone and name with batched instances.get requests, up to
+ * {@link #MAX_BATCH_SIZE} per HTTP request.
+ * <p/>
+ * Instances are identified by keys "zone/name", as produced by {@link #key(String, String)}.
+ */
+class InstanceFetcher {
+    static final int MAX_BATCH_SIZE = 100;
+
+    private InstanceFetcher() {
+    }
+
+    static String key(final String zone, final String name) {
+        return zone + "/" + name;
+    }
+
+    /**
+     * Get the instances. Instances which do not exist are missing from the result.
+     *
+     * @param fields the instance fields to get, or null for all of them. Each request of a batch takes a permit of
+     *               the project's rate limiter, as the API counts them one by one.
+     *
+     * @throws IOException if the batch fails or any instance fails with an error other than not found
+     */
+    static Map<String, Instance> fetch(final Compute compute, final String projectId, final Collection<String> keys,
+                                       final String fields) throws IOException {
+        final Map<String, Instance> instances = new LinkedHashMap<String, Instance>();
+        final List<String> errors = new ArrayList<String>();
+        final List<String> all = new ArrayList<String>(keys);
+        for (int start = 0; start < all.size(); start += MAX_BATCH_SIZE) {
+            final List<String> chunk = all.subList(start, Math.min(start + MAX_BATCH_SIZE, all.size()));
+            final BatchRequest batch = compute.batch();
+            batch.setBatchUrl(batchUrl(compute));
+            for (final String key : chunk) {
+                final int slash = key.indexOf('/');
+                final Compute.Instances.Get request = compute.instances().get(projectId, key.substring(0, slash),
+                                                                              key.substring(slash + 1));
+                if (null != fields) {
+                    request.setFields(fields);
+                }
+                request.queue(batch, new JsonBatchCallback<Instance>() {
+                    public void onSuccess(final Instance instance, final HttpHeaders responseHeaders) {
+                        instances.put(key, instance);
+                    }
+
+                    public void onFailure(final GoogleJsonError e, final HttpHeaders responseHeaders) {
+                        if (404 != e.getCode()) {
+                            errors.add(key + ": " + e.getCode() + " " + e.getMessage());
+                        }
+                    }
+                });
+            }
+            batch.execute();
+        }
+        if (!errors.isEmpty()) {
+            throw new IOException("Unable to get " + errors.size() + " instances of project " + projectId + ", e.g. "
+                                  + errors.get(0));
+        }
+        return instances;
+    }
+
+    /**
+     * The batch endpoint of the Compute API version of the client, e.g. "https://www.googleapis.com/batch/compute/v1".
+     * The global batch endpoint used by default is no longer served.
+     */
+    static GenericUrl batchUrl(final Compute compute) {
+        String servicePath = compute.getServicePath();
+        if (servicePath.endsWith("projects/")) {
+            servicePath = servicePath.substring(0, servicePath.length() - "projects/".length());
+        }
+        if (servicePath.endsWith("/")) {
+            servicePath = servicePath.substring(0, servicePath.length() - 1);
+        }
+        return new GenericUrl(compute.getRootUrl() + "batch/" + servicePath);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceFieldMask.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.util.ClassInfo;
+import com.google.api.services.compute.model.Instance;
+
+import java.util.*;
+
+/**
+ * InstanceFieldMask builds the partial response "fields" parameter for instance list requests from the selectors of a
+ * {@link MappingPlan}, so that only the instance fields the mapping reads are sent by the Compute API.
+ */
+class InstanceFieldMask {
+    /** Fields that are always needed: id is the nodename of last resort, name identifies the instance. */
+    private static final List<String> REQUIRED_FIELDS = Arrays.asList("id", "name");
+
+    private InstanceFieldMask() {
+    }
+
+    /**
+     * Return the instance fields read by the selectors of the mapping, e.g.
+     * "id,name,labels,networkInterfaces(networkIP)"
+     */
+    static String instanceFields(final MappingPlan plan) {
+        final Set<String> fields = selectedFields(plan.selectors());
+        //the node cache compares fingerprints to detect unchanged instances
+        fields.addAll(NodeCache.KEY_FIELDS);
+        if (!fields.contains("metadata")) {
+            fields.add(NodeCache.METADATA_KEY_FIELD);
+        }
+        return join(fields);
+    }
+
+    /**
+     * Return the instance fields the status refresh needs to patch the nodes, e.g. "id,name,status"
+     */
+    static String statusFields(final MappingPlan plan) {
+        final Set<String> fields = selectedFields(plan.statusSelectors());
+        fields.add("status");
+        return join(fields);
+    }
+
+    /**
+     * The required fields and the fields read by the selectors
+     */
+    private static Set<String> selectedFields(final List<Selector> selectors) {
+        final Collection<String> known = ClassInfo.of(Instance.class).getNames();
+        final Set<String> fields = new LinkedHashSet<String>(REQUIRED_FIELDS);
+        final Set<String> networkFields = new LinkedHashSet<String>();
+        for (final Selector compiled : selectors) {
+            final String selector = compiled.expression();
+            if ("networkInterfaces".equals(selector)) {
+                networkFields.add("networkIP");
+            } else if ("accessConfigs".equals(selector)) {
+                networkFields.add("accessConfigs(natIP)");
+            } else {
+                final String field = rootField(selector);
+                //unknown fields would make the API reject the mask, and select nothing anyway
+                if (known.contains(field)) {
+                    fields.add(field);
+                }
+            }
+        }
+        if (!networkFields.isEmpty() && !fields.contains("networkInterfaces")) {
+            fields.add("networkInterfaces(" + join(networkFields) + ")");
+        }
+        return fields;
+    }
+
+    /**
+     * Add the root fields of the selectors, e.g. "labels" for "labels.env", to the instance fields
+     */
+    static String withSelectors(final String instanceFields, final Collection<String> selectors) {
+        final Collection<String> known = ClassInfo.of(Instance.class).getNames();
+        final Set<String> present = topLevelFields(instanceFields);
+        final Set<String> added = new LinkedHashSet<String>();
+        for (final String selector : selectors) {
+            final String field = rootField(selector);
+            if (known.contains(field) && !present.contains(field)) {
+                added.add(field);
+            }
+        }
+        return added.isEmpty() ? instanceFields : instanceFields + "," + join(added);
+    }
+
+    /**
+     * Return the "fields" parameter for an aggregatedList request returning the given instance fields
+     */
+    static String aggregatedListFields(final String instanceFields) {
+        return "nextPageToken,items/*/instances(" + instanceFields + "),items/*/warning(code,message)";
+    }
+
+    /**
+     * Return the "fields" parameter for a zone's instances list request returning the given instance fields
+     */
+    static String listFields(final String instanceFields) {
+        return "nextPageToken,items(" + instanceFields + ")";
+    }
+
+    /**
+     * Return the top level field names of instance fields such as "id,name,networkInterfaces(networkIP)"
+     */
+    static Set<String> topLevelFields(final String instanceFields) {
+        final Set<String> fields = new HashSet<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= instanceFields.length(); i++) {
+            final char c = i < instanceFields.length() ? instanceFields.charAt(i) : ',';
+            if ('(' == c) {
+                if (0 == depth) {
+                    fields.add(instanceFields.substring(start, i));
+                }
+                depth++;
+            } else if (')' == c) {
+                depth--;
+                start = i + 1;
+            } else if (',' == c && 0 == depth) {
+                if (i > start) {
+                    fields.add(instanceFields.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Return instance fields such as "id,networkInterfaces(networkIP,accessConfigs(natIP))" as a tree: each field name
+     * maps to the tree of its selected subfields, or to null when the whole field is selected
+     */
+    static Map<String, Object> fieldTree(final String instanceFields) {
+        final Map<String, Object> tree = new HashMap<String, Object>();
+        String name = null;
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i <= instanceFields.length(); i++) {
+            final char c = i < instanceFields.length() ? instanceFields.charAt(i) : ',';
+            if ('(' == c) {
+                if (0 == depth) {
+                    name = instanceFields.substring(start, i);
+                    start = i + 1;
+                }
+                depth++;
+            } else if (')' == c) {
+                depth--;
+                if (0 == depth) {
+                    select(tree, name, fieldTree(instanceFields.substring(start, i)));
+                    start = i + 1;
+                }
+            } else if (',' == c && 0 == depth) {
+                if (i > start) {
+                    select(tree, instanceFields.substring(start, i), null);
+                }
+                start = i + 1;
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Add a field to a tree, a field selected whole taking precedence over its subfields
+     */
+    @SuppressWarnings("unchecked")
+    private static void select(final Map<String, Object> tree, final String name, final Map<String, Object> subfields) {
+        if (!tree.containsKey(name) || null == subfields) {
+            tree.put(name, subfields);
+            return;
+        }
+        final Map<String, Object> selected = (Map<String, Object>) tree.get(name);
+        if (null != selected) {
+            for (final Map.Entry<String, Object> entry : subfields.entrySet()) {
+                select(selected, entry.getKey(), (Map<String, Object>) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The top level property a selector reads, e.g. "labels" for "labels.environment"
+     */
+    static String rootField(final String selector) {
+        for (int i = 0; i < selector.length(); i++) {
+            final char c = selector.charAt(i);
+            if ('.' == c || '/' == c || '[' == c || '(' == c) {
+                return selector.substring(0, i);
+            }
+        }
+        return selector;
+    }
+
+    private static String join(final Collection<String> values) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String value : values) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceFilter.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import java.util.*;
+import java.util.regex.Matcher;
+
+/**
+ * InstanceFilter applies the "field=value" filter params and the running state option to single instances, for the
+ * instances fetched individually, which the server side list filter does not apply to.
+ * <p/>
+ * Raw filter expressions cannot be evaluated locally, so no InstanceFilter is compiled for them.
+ */
+class InstanceFilter {
+    private final Map<Selector, String> conditions;
+
+    private InstanceFilter(final Map<Selector, String> conditions) {
+        this.conditions = conditions;
+    }
+
+    /**
+     * Compile the filter, or return null if a param is not a simple "field=value" filter
+     */
+    static InstanceFilter compile(final List<String> filterParams, final boolean runningStateOnly) {
+        final Map<Selector, String> conditions = new LinkedHashMap<Selector, String>();
+        if (runningStateOnly) {
+            conditions.put(Selector.compile("status"), "RUNNING");
+        }
+        if (null != filterParams) {
+            for (final String param : filterParams) {
+                final String trimmed = param.trim();
+                if ("".equals(trimmed)) {
+                    continue;
+                }
+                final Matcher m = InstanceToNodeMapper.FILTER_PARAM_PATTERN.matcher(trimmed);
+                if (!m.matches()) {
+                    return null;
+                }
+                conditions.put(Selector.compile(m.group(1)), InstanceToNodeMapper.unquote(m.group(2).trim()));
+            }
+        }
+        return new InstanceFilter(conditions);
+    }
+
+    /**
+     * The selector expressions read by the filter, e.g. "labels.env"
+     */
+    List<String> fields() {
+        final List<String> fields = new ArrayList<String>();
+        for (final Selector selector : conditions.keySet()) {
+            fields.add(selector.expression());
+        }
+        return fields;
+    }
+
+    boolean matches(final Map<String, ?> instance) {
+        for (final Map.Entry<Selector, String> condition : conditions.entrySet()) {
+            if (!condition.getValue().equals(condition.getKey().apply(instance))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
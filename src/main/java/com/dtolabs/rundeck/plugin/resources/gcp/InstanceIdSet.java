@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceIdSet.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * InstanceIdSet records the numeric ids of the instances seen during a refresh, to drop instances listed twice, e.g.
+ * when the instance list shifts between two pages.
+ * <p/>
+ * Instance ids are unsigned 64 bit numbers, kept as longs in an open addressing hash table, so checking an instance
+ * never hashes or compares its JSON content. It is not thread safe; pages are deduplicated on the query thread, in
+ * arrival order.
+ */
+class InstanceIdSet {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] ids;
+    private boolean[] used;
+    private int size;
+
+    InstanceIdSet() {
+        this(1024);
+    }
+
+    InstanceIdSet(final int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        ids = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add the id, returning false if it was already present
+     */
+    boolean add(final long id) {
+        if (size + 1 > ids.length * LOAD_FACTOR) {
+            resize();
+        }
+        return insert(ids, used, id);
+    }
+
+    /**
+     * Return the instances whose id has not been seen yet, in their original order, and record their ids. Instances
+     * without an id are always kept.
+     */
+    <T extends Map<String, ?>> List<T> addAll(final List<T> instances) {
+        List<T> unseen = null;
+        for (int i = 0; i < instances.size(); i++) {
+            final T inst = instances.get(i);
+            final Long id = instanceId(inst);
+            if (null == id || add(id)) {
+                if (null != unseen) {
+                    unseen.add(inst);
+                }
+            } else if (null == unseen) {
+                //first duplicate: copy the instances before it
+                unseen = new ArrayList<T>(instances.subList(0, i));
+            }
+        }
+        return null != unseen ? unseen : instances;
+    }
+
+    /**
+     * The instance id as a long, or null if the instance has none
+     */
+    static Long instanceId(final Map<String, ?> inst) {
+        final Object id = inst.get("id");
+        if (id instanceof Number) {
+            return ((Number) id).longValue();
+        }
+        if (null != id) {
+            try {
+                return new BigInteger(id.toString()).longValue();
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private boolean insert(final long[] table, final boolean[] occupied, final long id) {
+        final int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (occupied[slot]) {
+            if (table[slot] == id) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id;
+        occupied[slot] = true;
+        size++;
+        return true;
+    }
+
+    private void resize() {
+        final long[] oldIds = ids;
+        final boolean[] oldUsed = used;
+        ids = new long[oldIds.length << 1];
+        used = new boolean[oldIds.length << 1];
+        size = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldUsed[i]) {
+                insert(ids, used, oldIds[i]);
+            }
+        }
+    }
+
+    private static int hash(final long id) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceOperations.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Operation;
+import com.google.api.services.compute.model.OperationAggregatedList;
+import com.google.api.services.compute.model.OperationsScopedList;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.*;
+
+/**
+ * InstanceOperations finds the instances changed since a point in time from the operations log of a project.
+ * <p/>
+ * Every change made through the API, and system events such as preemption, are recorded as operations targeting the
+ * instance. The server side filter keeps the operations still running, and those which ended less than
+ * {@link #FILTER_MARGIN} ms before the time, allowing for clock skew; the exact times are compared locally. The filter
+ * compares the times as strings, so its time is written in the format and time zone of the times the API returns,
+ * see {@link #filter(long, long)}. Every page of the filtered operations is read: an aggregated list is sorted only
+ * within each scope, so an old operation on a page says nothing about the next pages.
+ */
+class InstanceOperations {
+    private static final String FIELDS =
+            "nextPageToken,items/*/operations(targetLink,status,insertTime,startTime,endTime)";
+    /** allows for the skew between the local clock and the API's */
+    static final long FILTER_MARGIN = 5 * 60 * 1000L;
+    /** the time zone of the operation times returned by the API, e.g. "2018-07-11T05:00:01.000-07:00" */
+    static final ZoneId API_ZONE = ZoneId.of("America/Los_Angeles");
+    private static final DateTimeFormatter API_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSxxx");
+
+    private InstanceOperations() {
+    }
+
+    /**
+     * Return the keys ("zone/name") of the instances targeted by operations inserted, started or ended after the given
+     * time, or still running
+     */
+    static Set<String> changedSince(final Compute compute, final String projectId, final long since)
+        throws IOException {
+        return changedSince(compute, projectId, since, System.currentTimeMillis());
+    }
+
+    /**
+     * Return the keys of the instances changed after the given time, as of the time now, e.g. for tests
+     */
+    static Set<String> changedSince(final Compute compute, final String projectId, final long since, final long now)
+        throws IOException {
+        final Set<String> changed = new LinkedHashSet<String>();
+        final String filter = filter(since - FILTER_MARGIN, now);
+        String pageToken = null;
+        do {
+            final Compute.GlobalOperations.AggregatedList request = compute.globalOperations().aggregatedList(
+                    projectId);
+            request.setFields(FIELDS);
+            request.setFilter(filter);
+            if (null != pageToken) {
+                request.setPageToken(pageToken);
+            }
+            final OperationAggregatedList result = request.execute();
+            if (null != result.getItems()) {
+                for (final OperationsScopedList scoped : result.getItems().values()) {
+                    if (null == scoped.getOperations()) {
+                        continue;
+                    }
+                    for (final Operation operation : scoped.getOperations()) {
+                        final String key = instanceKey(operation.getTargetLink());
+                        if (null != key && (!"DONE".equals(operation.getStatus()) || after(operation, since))) {
+                            changed.add(key);
+                        }
+                    }
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (null != pageToken && !"".equals(pageToken));
+        return changed;
+    }
+
+    /**
+     * The filter of the operations still running or ended after the oldest time, written in the API's time zone. As
+     * the times are compared as strings, when the clocks of that zone were turned back between the oldest time and now
+     * the filter time is moved back as much, so that operations which ended in the repeated hour still match. Were the
+     * API to return UTC times instead, the filter would only match more operations, the local time in the API's zone
+     * being behind UTC.
+     */
+    static String filter(final long oldest, final long now) {
+        final Instant instant = Instant.ofEpochMilli(oldest);
+        ZonedDateTime time = instant.atZone(API_ZONE);
+        final ZoneOffsetTransition transition = API_ZONE.getRules().nextTransition(instant);
+        if (null != transition && transition.isOverlap() && transition.toEpochSecond() * 1000 <= now) {
+            time = time.minus(transition.getDuration().negated());
+        }
+        return "(status != \"DONE\") OR (endTime > \"" + time.format(API_TIME) + "\")";
+    }
+
+    private static boolean after(final Operation operation, final long since) {
+        return time(operation.getEndTime()) > since || time(operation.getStartTime()) > since
+               || time(operation.getInsertTime()) > since;
+    }
+
+    private static long time(final String timestamp) {
+        if (null == timestamp) {
+            return 0;
+        }
+        try {
+            return OffsetDateTime.parse(timestamp).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            //unknown format, treat the operation as recent
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The key "zone/name" of an instance target link such as ".../projects/p/zones/us-central1-a/instances/foo", or
+     * null if the target is not an instance
+     */
+    static String instanceKey(final String targetLink) {
+        if (null == targetLink) {
+            return null;
+        }
+        final String[] parts = targetLink.split("/");
+        for (int i = 0; i < parts.length - 3; i++) {
+            if ("zones".equals(parts[i]) && "instances".equals(parts[i + 2])) {
+                return InstanceFetcher.key(parts[i + 1], parts[i + 3]);
+            }
+        }
+        return null;
+    }
+}
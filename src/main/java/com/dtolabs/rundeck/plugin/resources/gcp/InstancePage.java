@@ -0,0 +1,132 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstancePage.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.services.compute.model.InstanceAggregatedList;
+import com.google.api.services.compute.model.InstanceList;
+import com.google.api.services.compute.model.InstancesScopedList;
+
+import java.util.*;
+
+/**
+ * InstancePage is one page of an instance list: the instances of each scope (e.g. "zones/us-central1-a"), the warnings
+ * of scopes which could not be listed, and the token of the next page.
+ * <p/>
+ * The instances are JSON maps, either {@link com.google.api.services.compute.model.Instance} objects or the plain maps
+ * produced by the {@link AggregatedListParser}.
+ */
+class InstancePage {
+    private final Map<String, List<? extends Map<String, Object>>> scopes;
+    private final Map<String, Warning> warnings;
+    private final String nextPageToken;
+
+    InstancePage(final Map<String, List<? extends Map<String, Object>>> scopes, final String nextPageToken) {
+        this(scopes, Collections.<String, Warning>emptyMap(), nextPageToken);
+    }
+
+    InstancePage(final Map<String, List<? extends Map<String, Object>>> scopes, final Map<String, Warning> warnings,
+                 final String nextPageToken) {
+        this.scopes = scopes;
+        this.warnings = warnings;
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * Wrap a page parsed by the Compute client
+     */
+    static InstancePage of(final InstanceAggregatedList list) {
+        final Map<String, List<? extends Map<String, Object>>> scopes =
+                new LinkedHashMap<String, List<? extends Map<String, Object>>>();
+        final Map<String, Warning> warnings = new HashMap<String, Warning>();
+        if (null != list.getItems()) {
+            for (final Map.Entry<String, InstancesScopedList> entry : list.getItems().entrySet()) {
+                if (null != entry.getValue().getInstances()) {
+                    scopes.put(entry.getKey(), entry.getValue().getInstances());
+                }
+                final InstancesScopedList.Warning warning = entry.getValue().getWarning();
+                if (null != warning) {
+                    warnings.put(entry.getKey(), new Warning(warning.getCode(), warning.getMessage()));
+                }
+            }
+        }
+        return new InstancePage(scopes, warnings, list.getNextPageToken());
+    }
+
+    /**
+     * Wrap a page of the instances of one scope, e.g. "zones/us-central1-a", parsed by the Compute client
+     */
+    static InstancePage of(final String scope, final InstanceList list) {
+        final Map<String, List<? extends Map<String, Object>>> scopes =
+                new LinkedHashMap<String, List<? extends Map<String, Object>>>();
+        if (null != list.getItems()) {
+            scopes.put(scope, list.getItems());
+        }
+        return new InstancePage(scopes, list.getNextPageToken());
+    }
+
+    /**
+     * The instances of each scope of the page
+     */
+    Map<String, List<? extends Map<String, Object>>> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * The warnings of the scopes of the page, e.g. UNREACHABLE for a zone which could not be listed
+     */
+    Map<String, Warning> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * The token of the next page, or null if this is the last page
+     */
+    String getNextPageToken() {
+        return null != nextPageToken && !"".equals(nextPageToken) ? nextPageToken : null;
+    }
+
+    /**
+     * The warning of a scope
+     */
+    static class Warning {
+        /** The scope could not be listed, its instances are missing from the response */
+        static final String UNREACHABLE = "UNREACHABLE";
+
+        final String code;
+        final String message;
+
+        Warning(final String code, final String message) {
+            this.code = code;
+            this.message = message;
+        }
+
+        /**
+         * Return true if the instances of the scope are missing from the response
+         */
+        boolean isFailure() {
+            return UNREACHABLE.equals(code);
+        }
+
+        public String toString() {
+            return code + ": " + message;
+        }
+    }
+}
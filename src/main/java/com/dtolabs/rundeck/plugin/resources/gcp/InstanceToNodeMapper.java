@@ -32,10 +32,7 @@ import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.compute.Compute;
@@ -43,27 +40,29 @@ import com.google.api.services.compute.ComputeScopes;
 
 import com.google.api.services.compute.model.Instance;
 import com.google.api.services.compute.model.InstanceList;
-import com.google.api.services.compute.model.InstanceAggregatedList;
-import com.google.api.services.compute.model.InstancesScopedList;
 import com.google.api.services.compute.model.Tags;
-import com.google.api.services.compute.model.NetworkInterface;
-import com.google.api.services.compute.model.AccessConfig;
 
 import com.dtolabs.rundeck.core.common.INodeEntry;
 import com.dtolabs.rundeck.core.common.INodeSet;
 import com.dtolabs.rundeck.core.common.NodeEntryImpl;
 import com.dtolabs.rundeck.core.common.NodeSetImpl;
-import org.apache.commons.beanutils.BeanUtils;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -76,327 +75,821 @@ import java.util.regex.Pattern;
  */
 class InstanceToNodeMapper {
     static final Logger logger = Logger.getLogger(InstanceToNodeMapper.class);
-    final GoogleCredential credential;
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
+    final String credentialKey;
+    private final QueryExecutor queries = new QueryExecutor();
     private ArrayList<String> filterParams;
     private String projectId;
     private boolean runningStateOnly = true;
     private Properties mapping;
-    private Compute compute;
+    private MappingPlan plan;
+    private String instanceFields;
+    private ListMask fullList;
+    private ListMask statusList;
+    private boolean zonalQuery = false;
+    private Set<String> zoneAllowlist = Collections.emptySet();
+    private int zoneConcurrency = 8;
+    private final ProjectZones projectZones = new ProjectZones();
+    private boolean streamingParse = false;
+    private int mappingParallelism = 1;
+    private final NodeCache nodeCache = new NodeCache();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    /** Held while the nodes of the project are queried or updated, so targeted refreshes never interleave with them */
+    private final Object queryLock = new Object();
+    /** The nodes of each scope at its last successful listing, replaced by each query */
+    private volatile Map<String, ScopeNodes> scopeNodes = Collections.emptyMap();
+    private long maxScopeStaleness = 0;
+    /** How long ago an identical listing of another source may have completed to be reused, see {@link SharedQuery} */
+    private long listingReuseWindow = 0;
+    private boolean incrementalRefresh = false;
+    private boolean statusRefresh = false;
+    private long fullResyncInterval = 60 * 60 * 1000L;
+    /** Start of the last full query, 0 before the first one */
+    private long lastFullQuery = 0;
+    /** Operations after this time are looked at by the next incremental refresh */
+    private long operationsCheckpoint = 0;
 
-    /**
-     * Be sure to specify the name of your application. If the application name is {@code null} or
-     * blank, the application will log a warning. Suggested format is "MyCompany-ProductName/1.0".
-     */
-    private static final String APPLICATION_NAME = "rundeck-gcp-nodes-plugin";
+    /** Operations are looked at again from this long before the previous refresh, to allow for clock differences. */
+    private static final long CHECKPOINT_OVERLAP = 2 * 60 * 1000L;
+
+    /** Pages smaller than this are always mapped on the query thread. */
+    private static final int MIN_PARALLEL_CHUNK = 64;
 
-    /** Global instance of the HTTP transport. */
-    private static HttpTransport httpTransport;
+    /** Shared by all mappers; the parallelism of a single mapper is limited by the number of chunks it submits. */
+    private static final ForkJoinPool MAPPING_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
-    /** Global instance of the JSON factory. */
-    private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+    /** A simple "field=value" filter param, as opposed to a raw filter expression such as "name != foo". */
+    static final Pattern FILTER_PARAM_PATTERN = Pattern.compile("^([A-Za-z0-9_.\\-]+)\\s*=\\s*(.*)$");
+
+    static final int PAGE_FETCH_THREADS = 64;
+    /** Fetches the next page of the instance list while the current one is being mapped, and the zones in parallel. */
+    private static final ExecutorService PAGE_EXECUTOR = QueryExecutor.boundedPool("gcp-nodes-page-fetch",
+                                                                                   PAGE_FETCH_THREADS);
 
     /**
-     * Create with the credentials and mapping definition
+     * Create with the credential key file and mapping definition
+     *
+     * @param credentialKey the path of the credential key file, see {@link CredentialRegistry}
      */
-    InstanceToNodeMapper(final GoogleCredential credential, final Properties mapping) {
-        this.credential = credential;
-        this.mapping = mapping;
+    InstanceToNodeMapper(final String credentialKey, final Properties mapping) {
+        this.credentialKey = credentialKey;
+        setMapping(mapping);
     }
 
     /**
      * Perform the query and return the set of instances
      *
+     * @throws IOException if the query fails, the circuit breaker is open after previous failures, or the mapper has
+     *                     been closed
      */
-    public INodeSet performQuery() {
+    public INodeSet performQuery() throws IOException {
+        checkOpen();
+        if (!circuitBreaker.allowRequest()) {
+            throw new IOException("Not querying project " + projectId + " after " + circuitBreaker.getFailures()
+                                  + " failures, next attempt in " + circuitBreaker.getRetryDelay() / 1000 + "s");
+        }
         final NodeSetImpl nodeSet = new NodeSetImpl();
+        boolean succeeded = false;
         try {
-             httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-             compute = new Compute.Builder(
-                    httpTransport, JSON_FACTORY, null).setApplicationName(APPLICATION_NAME)
-                    .setHttpRequestInitializer(credential).build();
-            final Set<Instance> instances = query(compute, projectId);
-            mapInstances(nodeSet, instances);
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
-        } catch (Throwable t) {
-            t.printStackTrace();
+            synchronized (queryLock) {
+                queryNodes(compute(), nodeSet);
+            }
+            succeeded = true;
+        } finally {
+            //any failure, Errors included, must end a probe or the breaker would stay half open
+            if (succeeded) {
+                circuitBreaker.recordSuccess();
+            } else {
+                circuitBreaker.recordFailure();
+            }
         }
         return nodeSet;
     }
 
     /**
-     * Perform the query asynchronously and return the set of instances
+     * The shared Compute client for the current credential of this mapper's key file
      *
+     * @throws IOException if the key file cannot be read, rather than querying the API without a credential
      */
-    public Future<INodeSet> performQueryAsync() {
-        return new Future<INodeSet>() {
+    Compute compute() throws IOException {
+        final GoogleCredential credential = CredentialRegistry.credential(credentialKey);
+        if (null == credential) {
+            throw new IOException("No credential for project " + projectId + ", unable to read " + credentialKey);
+        }
+        return ComputeClients.forCredential(credentialKey, credential);
+    }
 
-            public boolean cancel(boolean b) {
-                return true;
+    /**
+     * Perform the query asynchronously on the shared query threads and return the pending set of instances
+     *
+     */
+    public CompletableFuture<INodeSet> performQueryAsync() {
+        return queries.submit(new Callable<INodeSet>() {
+            public INodeSet call() throws IOException {
+                return performQuery();
             }
+        });
+    }
 
-            public boolean isCancelled() {
-                return true;
-            }
+    /**
+     * Cancel the queries in flight and refuse further queries, and drop the nodes kept for the next query. Does not
+     * wait for the cancelled queries to end.
+     */
+    void close() {
+        queries.close();
+        nodeCache.clear();
+        scopeNodes = Collections.emptyMap();
+    }
 
-            public boolean isDone() {
-                return true;
-            }
+    private void checkOpen() throws IOException {
+        if (queries.isClosed()) {
+            throw new InterruptedIOException("The query of project " + projectId + " has been closed");
+        }
+    }
+
+    /**
+     * Stop a listing cancelled by {@link SharedQuery} as its subscribers are gone
+     */
+    private static void checkInterrupted() throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted listing instances");
+        }
+    }
 
-            public INodeSet get() throws InterruptedException, ExecutionException {
-                final NodeSetImpl nodeSet = new NodeSetImpl();
-                final Set<Instance> instances = query(compute, projectId);
+    /**
+     * Page through the aggregated instance list, handing each page to the handler as soon as it arrives. The next page
+     * is requested before the current one is handed off, so mapping overlaps with the download of the following page.
+     */
+    private void query(final Compute compute, final String projectId, final String filter, final ListMask mask,
+                       final InstancePageHandler handler) throws IOException {
+        Future<InstancePage> pending = fetchPage(compute, projectId, filter, mask, null);
+        try {
+            while (null != pending) {
+                checkInterrupted();
+                final InstancePage page = await(pending);
+                pending = null;
+                if (null != page.getNextPageToken()) {
+                    pending = fetchPage(compute, projectId, filter, mask, page.getNextPageToken());
+                }
+                handleScopes(page, handler);
+            }
+        } finally {
+            if (null != pending) {
+                pending.cancel(true);
+            }
+        }
+    }
 
-                mapInstances(nodeSet, instances);
-                return nodeSet;
+    /**
+     * List the instances of the project, per zone or aggregated. The listing is shared with the mappers of other
+     * sources making the same listing at the same time, see {@link SharedQuery}.
+     */
+    private void list(final Compute compute, final String filter, final ListMask mask,
+                      final InstancePageHandler handler) throws IOException {
+        final StringBuilder key = new StringBuilder();
+        key.append(credentialKey).append('\n').append(projectId).append('\n');
+        key.append(zonalQuery ? "zones " : "aggregated ").append(new TreeSet<String>(zoneAllowlist)).append('\n');
+        key.append(filter).append('\n').append(zonalQuery ? mask.listFields : mask.aggregatedListFields).append('\n');
+        //the pages are Instances or streamed maps depending on the parse mode
+        key.append(streamingParse ? "streaming" : "typed");
+        SharedQuery.list(key.toString(), new SharedQuery.Listing() {
+            public void list(final InstancePageHandler publish) throws IOException {
+                if (zonalQuery) {
+                    queryZones(compute, projectId, filter, mask, publish);
+                } else {
+                    query(compute, projectId, filter, mask, publish);
+                }
             }
+        }, handler, queries, listingReuseWindow);
+    }
 
-            public INodeSet get(final long l, final TimeUnit timeUnit) throws InterruptedException, ExecutionException,
-                TimeoutException {
+    private void handleScopes(final InstancePage page, final InstancePageHandler handler) {
+        for (final Map.Entry<String, List<? extends Map<String, Object>>> scope : page.getScopes().entrySet()) {
+            if (ProjectZones.scopeAllowed(scope.getKey(), zoneAllowlist)) {
+                handler.handlePage(scope.getKey(), scope.getValue());
+            }
+        }
+        for (final Map.Entry<String, InstancePage.Warning> warning : page.getWarnings().entrySet()) {
+            if (warning.getValue().isFailure() && ProjectZones.scopeAllowed(warning.getKey(), zoneAllowlist)) {
+                handler.scopeFailed(warning.getKey(), warning.getValue().toString());
+            }
+        }
+    }
 
-                final NodeSetImpl nodeSet = new NodeSetImpl();
-                final Set<Instance> instances = query(compute, projectId);
+    /**
+     * List the instances of each zone of the project separately, with at most {@code zoneConcurrency} zones in flight,
+     * and hand the pages of each zone to the handler as soon as that zone is complete, so a slow zone only delays
+     * itself. A zone which cannot be listed is reported to the handler; the query fails only if every zone does.
+     */
+    private void queryZones(final Compute compute, final String projectId, final String filter, final ListMask mask,
+                            final InstancePageHandler handler) throws IOException {
+        final List<String> zones = projectZones.zones(compute, projectId, zoneAllowlist);
+        final CompletionService<List<InstancePage>> completion =
+                new ExecutorCompletionService<List<InstancePage>>(PAGE_EXECUTOR);
+        final Map<Future<List<InstancePage>>, String> pending = new HashMap<Future<List<InstancePage>>, String>();
+        IOException firstFailure = null;
+        int failures = 0;
+        int next = 0;
+        int running = 0;
+        try {
+            while (next < zones.size() || running > 0) {
+                checkInterrupted();
+                while (next < zones.size() && running < zoneConcurrency) {
+                    final String zone = zones.get(next++);
+                    pending.put(completion.submit(fetchZone(compute, projectId, zone, filter, mask)), zone);
+                    running++;
+                }
+                final Future<List<InstancePage>> done;
+                try {
+                    done = completion.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for zone instance list");
+                }
+                running--;
+                final List<InstancePage> pages;
+                try {
+                    pages = await(done);
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    failures++;
+                    if (null == firstFailure) {
+                        firstFailure = e;
+                    }
+                    handler.scopeFailed("zones/" + pending.get(done), e.getMessage());
+                    continue;
+                }
+                for (final InstancePage page : pages) {
+                    handleScopes(page, handler);
+                }
+            }
+        } finally {
+            for (final Future<List<InstancePage>> future : pending.keySet()) {
+                future.cancel(true);
+            }
+        }
+        if (null != firstFailure && failures == zones.size()) {
+            throw firstFailure;
+        }
+    }
 
-                mapInstances(nodeSet, instances);
-                return nodeSet;
+    /**
+     * Page through the instances list of one zone
+     */
+    private Callable<List<InstancePage>> fetchZone(final Compute compute, final String projectId, final String zone,
+                                                   final String filter, final ListMask mask) {
+        final String fields = mask.listFields;
+        final AggregatedListParser parser = streamingParse ? mask.parser : null;
+        return new Callable<List<InstancePage>>() {
+            public List<InstancePage> call() throws IOException {
+                final List<InstancePage> pages = new ArrayList<InstancePage>();
+                String pageToken = null;
+                do {
+                    final Compute.Instances.List request = compute.instances().list(projectId, zone);
+                    if (null != filter) {
+                        request.setFilter(filter);
+                    }
+                    if (null != fields) {
+                        request.setFields(fields);
+                    }
+                    if (null != pageToken) {
+                        request.setPageToken(pageToken);
+                    }
+                    final InstancePage page;
+                    if (null == parser) {
+                        page = InstancePage.of("zones/" + zone, request.execute());
+                    } else {
+                        final HttpResponse response = request.executeUnparsed();
+                        try {
+                            page = parser.parseList(response.getContent(), response.getContentCharset(),
+                                                    "zones/" + zone);
+                        } finally {
+                            response.ignore();
+                        }
+                    }
+                    pages.add(page);
+                    pageToken = page.getNextPageToken();
+                } while (null != pageToken);
+                return pages;
             }
         };
     }
 
-    private Set<Instance> query(Compute compute, String projectId) {
-        final Set<Instance> instances = new HashSet<Instance>();
+    private Future<InstancePage> fetchPage(final Compute compute, final String projectId, final String filter,
+                                           final ListMask mask, final String pageToken) {
+        final String fields = mask.aggregatedListFields;
+        final AggregatedListParser parser = streamingParse ? mask.parser : null;
+        return PAGE_EXECUTOR.submit(new Callable<InstancePage>() {
+            public InstancePage call() throws IOException {
+                final Compute.Instances.AggregatedList request = compute.instances().aggregatedList(projectId);
+                if (null != filter) {
+                    request.setFilter(filter);
+                }
+                if (null != fields) {
+                    request.setFields(fields);
+                }
+                if (null != pageToken) {
+                    request.setPageToken(pageToken);
+                }
+                if (null == parser) {
+                    return InstancePage.of(request.execute());
+                }
+                final HttpResponse response = request.executeUnparsed();
+                try {
+                    return parser.parse(response.getContent(), response.getContentCharset());
+                } finally {
+                    //release the connection to the pool, disconnect() would close the kept alive socket
+                    response.ignore();
+                }
+            }
+        });
+    }
+
+    private static <T> T await(final Future<T> pending) throws IOException {
         try {
-                Compute.Instances.AggregatedList instancesAggregatedList = compute.instances().aggregatedList(projectId);
-                InstanceAggregatedList list = instancesAggregatedList.execute();
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for instance list page");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
 
-                assert list.getItems() != null;
+    /**
+     * Map the instances into the node set. With a mapping parallelism above 1 the instances are split into chunks
+     * mapped concurrently, and the nodes are still put in instance order, so nodename collisions resolve the same way
+     * as when mapping sequentially.
+     */
+    private List<INodeEntry> mapInstances(final NodeSetImpl nodeSet,
+                                          final List<? extends Map<String, Object>> instances,
+                                          final NodeCache.Generation cache) {
+        final int chunks = Math.min(mappingParallelism, instances.size() / MIN_PARALLEL_CHUNK);
+        if (chunks < 2) {
+            final List<INodeEntry> nodes = mapChunk(instances, cache);
+            putNodes(nodeSet, nodes);
+            return nodes;
+        }
+        final int chunkSize = (instances.size() + chunks - 1) / chunks;
+        final List<ForkJoinTask<List<INodeEntry>>> tasks = new ArrayList<ForkJoinTask<List<INodeEntry>>>();
+        for (int start = 0; start < instances.size(); start += chunkSize) {
+            final List<? extends Map<String, Object>> chunk = instances.subList(start, Math.min(start + chunkSize,
+                                                                                              instances.size()));
+            tasks.add(MAPPING_POOL.submit(new Callable<List<INodeEntry>>() {
+                public List<INodeEntry> call() {
+                    return mapChunk(chunk, cache);
+                }
+            }));
+        }
+        final List<INodeEntry> nodes = new ArrayList<INodeEntry>(instances.size());
+        for (final ForkJoinTask<List<INodeEntry>> task : tasks) {
+            final List<INodeEntry> chunkNodes = task.join();
+            putNodes(nodeSet, chunkNodes);
+            nodes.addAll(chunkNodes);
+        }
+        return nodes;
+    }
+
+    /**
+     * Map the instances, reusing the cached node of every unchanged instance. The nodes are in instance order, with
+     * null for the instances which could not be mapped.
+     */
+    private List<INodeEntry> mapChunk(final List<? extends Map<String, Object>> instances,
+                                      final NodeCache.Generation cache) {
+        final List<INodeEntry> nodes = new ArrayList<INodeEntry>(instances.size());
+        for (final Map<String, Object> inst : instances) {
+            INodeEntry iNodeEntry = null;
+            try {
+                iNodeEntry = cache.lookup(inst);
+                if (null == iNodeEntry) {
+                    iNodeEntry = plan.toNode(inst, projectId);
+                    cache.store(inst, iNodeEntry);
+                }
+            } catch (GeneratorException e) {
+                logger.error(e);
+            }
+            nodes.add(iNodeEntry);
+        }
+        return nodes;
+    }
 
-                java.util.Map<String, InstancesScopedList> aggregated_list = list.getItems();
+    private static void putNodes(final NodeSetImpl nodeSet, final List<INodeEntry> nodes) {
+        for (final INodeEntry node : nodes) {
+            if (null != node) {
+                nodeSet.putNode(node);
+            }
+        }
+    }
 
-                for (java.util.Map.Entry<String, InstancesScopedList> entry : aggregated_list.entrySet()) {
-                    if (entry.getValue().getInstances() != null) {
-                        instances.addAll(entry.getValue().getInstances());
-                    }
+    /**
+     * The name of an instance, identifying it within its zone
+     */
+    private static String instanceName(final Map<String, ?> inst) {
+        final Object name = inst.get("name");
+        return null != name ? name.toString() : "#" + inst.get("id");
+    }
+
+    /**
+     * Query the project, incrementally or by status if enabled and the last full query is recent enough, otherwise by
+     * listing every instance
+     */
+    private void queryNodes(final Compute compute, final NodeSetImpl nodeSet) throws IOException {
+        final long started = System.currentTimeMillis();
+        final InstanceFilter filter = InstanceFilter.compile(filterParams, runningStateOnly);
+        if (incrementalRefresh && lastFullQuery > 0 && started - lastFullQuery < fullResyncInterval) {
+            if (null == filter) {
+                logger.warn("Incremental refresh is not possible with raw filter expressions, listing every instance");
+            } else {
+                try {
+                    queryChanges(compute, nodeSet, filter, started);
+                    return;
+                } catch (IOException e) {
+                    logger.warn("Incremental refresh of project " + projectId + " failed, listing every instance: "
+                                + e.getMessage());
                 }
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
-        } catch (Throwable t) {
-            t.printStackTrace();
+            }
         }
+        if (statusRefresh && !incrementalRefresh && lastFullQuery > 0 && started - lastFullQuery < fullResyncInterval) {
+            queryStatus(compute, nodeSet, started);
+            return;
+        }
+        listNodes(compute, nodeSet, started);
+        lastFullQuery = started;
+        operationsCheckpoint = started - CHECKPOINT_OVERLAP;
+    }
 
-        return instances;
+    /**
+     * Get only the instances targeted by operations since the previous refresh, and update their nodes in the nodes
+     * of the previous refresh
+     */
+    private void queryChanges(final Compute compute, final NodeSetImpl nodeSet, final InstanceFilter filter,
+                              final long started) throws IOException {
+        final int changed = updateInstances(compute, nodeSet, filter, started,
+                                            InstanceOperations.changedSince(compute, projectId,
+                                                                            operationsCheckpoint));
+        operationsCheckpoint = started - CHECKPOINT_OVERLAP;
+        logger.info("Incremental refresh of project " + projectId + ": " + changed + " changed instances, "
+                    + nodeSet.getNodes().size() + " nodes");
     }
 
+    /**
+     * List only the status of every instance and patch it into the nodes of the previous refresh, see
+     * {@link MappingPlan#patchStatus(INodeEntry, Map)}. Instances which were not listed before are fetched and mapped
+     * in full, and the nodes of instances no longer listed are removed. The nodes of scopes which could not be listed
+     * are kept from the previous query.
+     */
+    private void queryStatus(final Compute compute, final NodeSetImpl nodeSet, final long started)
+        throws IOException {
+        final Map<String, ScopeNodes> previous = scopeNodes;
+        final InstanceIdSet seen = new InstanceIdSet();
+        final Map<String, Map<String, INodeEntry>> listed = new LinkedHashMap<String, Map<String, INodeEntry>>();
+        final Map<String, String> added = new LinkedHashMap<String, String>();
+        final Map<String, String> failed = new LinkedHashMap<String, String>();
+        final InstancePageHandler handler = new InstancePageHandler() {
+            public void handlePage(final String scope, final List<? extends Map<String, Object>> instances) {
+                final ScopeNodes last = previous.get(scope);
+                Map<String, INodeEntry> scopeNodes = listed.get(scope);
+                if (null == scopeNodes) {
+                    scopeNodes = new LinkedHashMap<String, INodeEntry>();
+                    listed.put(scope, scopeNodes);
+                }
+                for (final Map<String, Object> inst : seen.addAll(instances)) {
+                    final String name = instanceName(inst);
+                    final INodeEntry node = null != last ? last.nodes.get(name) : null;
+                    if (null != node) {
+                        scopeNodes.put(name, plan.patchStatus(node, inst));
+                    } else if (scope.startsWith("zones/")) {
+                        added.put(InstanceFetcher.key(scope.substring("zones/".length()), name), scope);
+                    }
+                }
+            }
 
-    private void mapInstances(final NodeSetImpl nodeSet, final Set<Instance> instances) {
-        for (final Instance inst : instances) {
-            final INodeEntry iNodeEntry;
+            public void scopeFailed(final String scope, final String reason) {
+                failed.put(scope, reason);
+            }
+        };
+        list(compute, buildFilter(filterParams, runningStateOnly), statusList, handler);
+        //new instances matched the filter of the list, so they are only mapped
+        final Map<String, Instance> fetched = added.isEmpty() ? Collections.<String, Instance>emptyMap()
+                : InstanceFetcher.fetch(compute, projectId, added.keySet(), instanceFields);
+        for (final Map.Entry<String, Instance> entry : fetched.entrySet()) {
             try {
-                iNodeEntry = InstanceToNodeMapper.instanceToNode(inst, mapping, projectId);
-                if (null != iNodeEntry) {
-                    nodeSet.putNode(iNodeEntry);
-                }
+                listed.get(added.get(entry.getKey())).put(instanceName(entry.getValue()),
+                                                          plan.toNode(entry.getValue(), projectId));
             } catch (GeneratorException e) {
                 logger.error(e);
             }
         }
+        for (final Map<String, INodeEntry> nodes : listed.values()) {
+            for (final INodeEntry node : nodes.values()) {
+                nodeSet.putNode(node);
+            }
+        }
+        keepFailedScopes(nodeSet, started, listed, failed);
+        logger.info("Status refresh of project " + projectId + ": " + added.size() + " new instances, "
+                    + nodeSet.getNodes().size() + " nodes");
     }
 
     /**
-     * Convert an GCP GCE Instance to a Rundeck INodeEntry based on the mapping input
+     * Get the given instances and merge them into the nodes of the last refresh, without listing the project, e.g.
+     * after a job changed them
+     *
+     * @param instances instances as "zone/name", or instance URLs such as ".../zones/us-central1-a/instances/foo"
+     *
+     * @return the updated nodes of the project
+     *
+     * @throws IOException if the instances cannot be fetched, there are no nodes to update yet, or the filter has raw
+     *                     expressions, which cannot be applied to single instances
      */
-    @SuppressWarnings("unchecked")
-    static INodeEntry instanceToNode(final Instance inst, final Properties mapping, String projectId) throws GeneratorException {
-        final NodeEntryImpl node = new NodeEntryImpl();
-        if (null != mapping.getProperty("tags.selector")) {
-            final String selector = mapping.getProperty("tags.selector");
-            final String value = applySelector(inst, selector, mapping.getProperty("tags.default"), true);
-            if (null != value) {
-                final String[] values = value.split(",");
-                final HashSet<String> tagset = new HashSet<String>();
-                for (final String s : values) {
-                    tagset.add(s.trim());
-                }
-                //add in projectId as a tag
-                tagset.add(projectId.trim());
-                if (null == node.getTags()) {
-                    node.setTags(tagset);
-                } else {
-                    final HashSet orig = new HashSet(node.getTags());
-                    orig.addAll(tagset);
-                    node.setTags(orig);
-                }
+    public INodeSet refreshInstances(final Collection<String> instances) throws IOException {
+        final List<String> keys = new ArrayList<String>();
+        for (final String instance : instances) {
+            final String key = instance.contains("/instances/") ? InstanceOperations.instanceKey(instance)
+                                                                : instance;
+            if (null == key || key.indexOf('/') < 1) {
+                throw new IllegalArgumentException("Not an instance \"zone/name\": " + instance);
             }
+            keys.add(key);
         }
-        if (null == node.getTags()) {
-            node.setTags(new HashSet());
-        }
-        final HashSet orig = new HashSet(node.getTags());
-        //apply specific tag selectors
-        final Pattern tagPat = Pattern.compile("^tag\\.(.+?)\\.selector$");
-        //evaluate tag selectors
-        for (final Object o : mapping.keySet()) {
-            final String key = (String) o;
-            final String selector = mapping.getProperty(key);
-            //split selector by = if present
-            final String[] selparts = selector.split("=");
-            final Matcher m = tagPat.matcher(key);
-            if (m.matches()) {
-                final String tagName = m.group(1);
-                if (null == node.getAttributes()) {
-                    node.setAttributes(new HashMap<String, String>());
-                }
-                final String value = applySelector(inst, selparts[0], null);
-                if (null != value) {
-                    if (selparts.length > 1 && !value.equals(selparts[1])) {
-                        continue;
+        final InstanceFilter filter = InstanceFilter.compile(filterParams, runningStateOnly);
+        if (null == filter) {
+            throw new IOException("Instances cannot be refreshed one by one with raw filter expressions");
+        }
+        final NodeSetImpl nodeSet = new NodeSetImpl();
+        synchronized (queryLock) {
+            checkOpen();
+            if (0 == lastFullQuery) {
+                throw new IOException("Project " + projectId + " has not been queried yet");
+            }
+            updateInstances(compute(), nodeSet, filter, System.currentTimeMillis(), keys);
+        }
+        logger.info("Refreshed " + keys.size() + " instances of project " + projectId);
+        return nodeSet;
+    }
+
+    /**
+     * Get the instances with batched requests, and update their nodes in the nodes of the previous refresh. Instances
+     * which no longer exist or no longer match the filter are removed. The node set is only filled once every request
+     * has succeeded.
+     *
+     * @param keys instances as "zone/name"
+     *
+     * @return the number of instances fetched
+     */
+    private int updateInstances(final Compute compute, final NodeSetImpl nodeSet, final InstanceFilter filter,
+                                final long started, final Collection<String> keys) throws IOException {
+        final Map<String, List<String>> changedByScope = new LinkedHashMap<String, List<String>>();
+        final Set<String> changed = new LinkedHashSet<String>();
+        for (final String key : keys) {
+            final int slash = key.indexOf('/');
+            if (!ProjectZones.allowed(key.substring(0, slash), zoneAllowlist) || !changed.add(key)) {
+                continue;
+            }
+            final String scope = "zones/" + key.substring(0, slash);
+            List<String> names = changedByScope.get(scope);
+            if (null == names) {
+                names = new ArrayList<String>();
+                changedByScope.put(scope, names);
+            }
+            names.add(key.substring(slash + 1));
+        }
+        final Map<String, Instance> fetched = changed.isEmpty() ? Collections.<String, Instance>emptyMap()
+                : InstanceFetcher.fetch(compute, projectId, changed,
+                                        InstanceFieldMask.withSelectors(instanceFields, filter.fields()));
+        final Map<String, ScopeNodes> next = new LinkedHashMap<String, ScopeNodes>(scopeNodes);
+        for (final Map.Entry<String, List<String>> entry : changedByScope.entrySet()) {
+            final String scope = entry.getKey();
+            final ScopeNodes current = next.get(scope);
+            final Map<String, INodeEntry> nodes = null != current
+                                                  ? new LinkedHashMap<String, INodeEntry>(current.nodes)
+                                                  : new LinkedHashMap<String, INodeEntry>();
+            final String zone = scope.substring("zones/".length());
+            for (final String name : entry.getValue()) {
+                nodes.remove(name);
+                final Instance inst = fetched.get(InstanceFetcher.key(zone, name));
+                if (null != inst && filter.matches(inst)) {
+                    try {
+                        nodes.put(name, plan.toNode(inst, projectId));
+                    } catch (GeneratorException e) {
+                        logger.error(e);
                     }
-                    //use add the tag if the value is not null
-                    orig.add(tagName);
                 }
             }
+            next.put(scope, null != current ? new ScopeNodes(nodes, current.queried, current.stale)
+                                            : new ScopeNodes(nodes, started, false));
         }
-        node.setTags(orig);
-
-        //apply default values which do not have corresponding selector
-        final Pattern attribDefPat = Pattern.compile("^([^.]+?)\\.default$");
-        //evaluate selectors
-        for (final Object o : mapping.keySet()) {
-            final String key = (String) o;
-            final String value = mapping.getProperty(key);
-            final Matcher m = attribDefPat.matcher(key);
-            if (m.matches() && (!mapping.containsKey(key + ".selector") || "".equals(mapping.getProperty(
-                key + ".selector")))) {
-                final String attrName = m.group(1);
-                if (null == node.getAttributes()) {
-                    node.setAttributes(new HashMap<String, String>());
+        putScopeNodes(nodeSet, next);
+        scopeNodes = next;
+        return changed.size();
+    }
+
+    /**
+     * Put the nodes of every scope, nodes of the scopes which could not be listed last only where their nodename is
+     * not taken
+     */
+    private static void putScopeNodes(final NodeSetImpl nodeSet, final Map<String, ScopeNodes> scopes) {
+        for (final ScopeNodes scope : scopes.values()) {
+            if (!scope.stale) {
+                for (final INodeEntry node : scope.nodes.values()) {
+                    nodeSet.putNode(node);
                 }
-                if (null != value) {
-                    node.getAttributes().put(attrName, value);
+            }
+        }
+        for (final ScopeNodes scope : scopes.values()) {
+            if (scope.stale) {
+                final String staleSince = Instant.ofEpochMilli(scope.queried).toString();
+                for (final INodeEntry node : scope.nodes.values()) {
+                    if (null == nodeSet.getNode(node.getNodename())) {
+                        nodeSet.putNode(GCPResourceModelSource.NodeSnapshot.staleCopy(node, staleSince));
+                    }
                 }
-                //add in an extra node attribute called projectId
-                node.getAttributes().put("projectId", projectId);
             }
         }
+    }
 
-        final Pattern attribPat = Pattern.compile("^([^.]+?)\\.selector$");
-        //evaluate selectors
-        for (final Object o : mapping.keySet()) {
-            final String key = (String) o;
-            final String selector = mapping.getProperty(key);
-            final Matcher m = attribPat.matcher(key);
-            if (m.matches()) {
-                final String attrName = m.group(1);
-                if ("tags".equals(attrName)) {
-                    //already handled
-                    continue;
-                }
-                if (null == node.getAttributes()) {
-                    node.setAttributes(new HashMap<String, String>());
+    /**
+     * List every instance of the project and map every page of instances into the node set as it arrives, skipping
+     * instances whose id has already been seen. The nodes of scopes which could not be listed are kept from the
+     * previous query.
+     */
+    private void listNodes(final Compute compute, final NodeSetImpl nodeSet, final long started) throws IOException {
+        final NodeCache.Generation cache = nodeCache.nextGeneration();
+        final InstanceIdSet seen = new InstanceIdSet();
+        final Map<String, Map<String, INodeEntry>> listed = new LinkedHashMap<String, Map<String, INodeEntry>>();
+        final Map<String, String> failed = new LinkedHashMap<String, String>();
+        final InstancePageHandler handler = new InstancePageHandler() {
+            public void handlePage(final String scope, final List<? extends Map<String, Object>> instances) {
+                final List<? extends Map<String, Object>> unseen = seen.addAll(instances);
+                final List<INodeEntry> nodes = mapInstances(nodeSet, unseen, cache);
+                Map<String, INodeEntry> scopeNodes = listed.get(scope);
+                if (null == scopeNodes) {
+                    scopeNodes = new LinkedHashMap<String, INodeEntry>();
+                    listed.put(scope, scopeNodes);
                 }
-                final String value = applySelector(inst, selector, mapping.getProperty(attrName + ".default"));
-                if (null != value) {
-                    //use nodename-settingname to make the setting unique to the node
-                    node.getAttributes().put(attrName, value);
+                for (int i = 0; i < nodes.size(); i++) {
+                    if (null != nodes.get(i)) {
+                        scopeNodes.put(instanceName(unseen.get(i)), nodes.get(i));
+                    }
                 }
             }
-        }
 
-        assert node.getHostname() != null;
+            public void scopeFailed(final String scope, final String reason) {
+                failed.put(scope, reason);
+            }
+        };
+        list(compute, buildFilter(filterParams, runningStateOnly), fullList, handler);
+        cache.commit();
+        logger.info("Node cache of project " + projectId + ": " + cache.getHits() + " hits, " + cache.getMisses()
+                    + " misses");
+        keepFailedScopes(nodeSet, started, listed, failed);
+        final RateLimiter limiter = getRateLimiter();
+        logger.debug("Project " + projectId + ": " + nodeSet.getNodes().size() + " nodes, API requests throttled "
+                     + limiter.getThrottledCount() + ", rate limited " + limiter.getRateLimitedCount() + ", retried "
+                     + limiter.getRetriedCount());
+    }
 
-        String name = node.getNodename();
-        if (null == name || "".equals(name)) {
-            name = node.getHostname();
+    /**
+     * Record the nodes of each listed scope, and put the previous nodes of the failed scopes into the node set, marked
+     * as stale, unless they are older than the max staleness. Nodes listed by this query take precedence.
+     */
+    private void keepFailedScopes(final NodeSetImpl nodeSet, final long started,
+                                  final Map<String, Map<String, INodeEntry>> listed,
+                                  final Map<String, String> failed) {
+        final Map<String, ScopeNodes> previous = scopeNodes;
+        final Map<String, ScopeNodes> next = new LinkedHashMap<String, ScopeNodes>();
+        for (final Map.Entry<String, Map<String, INodeEntry>> entry : listed.entrySet()) {
+            next.put(entry.getKey(), new ScopeNodes(entry.getValue(), started, false));
         }
-        if (null == name || "".equals(name)) {
-            name = inst.getId().toString();
+        for (final Map.Entry<String, String> entry : failed.entrySet()) {
+            final String scope = entry.getKey();
+            final ScopeNodes last = previous.get(scope);
+            if (null == last || last.nodes.isEmpty()) {
+                logger.warn("Project " + projectId + ", " + scope + " could not be listed: " + entry.getValue());
+                continue;
+            }
+            final long age = System.currentTimeMillis() - last.queried;
+            if (maxScopeStaleness > 0 && age > maxScopeStaleness) {
+                logger.warn("Project " + projectId + ", " + scope + " could not be listed, dropping its "
+                            + last.nodes.size() + " nodes from " + age / 1000 + "s ago: " + entry.getValue());
+                continue;
+            }
+            logger.warn("Project " + projectId + ", " + scope + " could not be listed, keeping its "
+                        + last.nodes.size() + " nodes from " + age / 1000 + "s ago: " + entry.getValue());
+            next.put(scope, new ScopeNodes(last.nodes, last.queried, true));
+            final String staleSince = Instant.ofEpochMilli(last.queried).toString();
+            for (final INodeEntry node : last.nodes.values()) {
+                if (null == nodeSet.getNode(node.getNodename())) {
+                    nodeSet.putNode(GCPResourceModelSource.NodeSnapshot.staleCopy(node, staleSince));
+                }
+            }
         }
-        node.setNodename(name);
-
-        return node;
+        scopeNodes = next;
     }
 
     /**
-     * Return the result of the selector applied to the instance, otherwise return the defaultValue. The selector can be
-     * a comma-separated list of selectors
+     * Milliseconds since the oldest nodes kept for a failed scope were listed, 0 if every scope was listed
      */
-    public static String applySelector(final Instance inst, final String selector, final String defaultValue) throws
-        GeneratorException {
-        return applySelector(inst, selector, defaultValue, false);
+    long getScopeStalenessMillis() {
+        long staleness = 0;
+        for (final ScopeNodes nodes : scopeNodes.values()) {
+            if (nodes.stale) {
+                staleness = Math.max(staleness, System.currentTimeMillis() - nodes.queried);
+            }
+        }
+        return staleness;
     }
 
     /**
-     * Return the result of the selector applied to the instance, otherwise return the defaultValue. The selector can be
-     * a comma-separated list of selectors.
-     * @param inst the instance
-     * @param selector the selector string
-     * @param defaultValue a default value to return if there is no result from the selector
-     * @param tagMerge if true, allow | separator to merge multiple values
+     * The time the oldest nodes kept for a failed scope were listed, 0 if every scope was listed
      */
-    public static String applySelector(final Instance inst, final String selector, final String defaultValue,
-                                       final boolean tagMerge) throws GeneratorException {
-        if (null != selector) {
-            for (final String selPart : selector.split(",")) {
-                if (tagMerge) {
-                    final StringBuilder sb = new StringBuilder();
-                    for (final String subPart : selPart.split(Pattern.quote("|"))) {
-                        final String val = applySingleSelector(inst, subPart);
-                        if (null != val && sb.length() > 0) {
-                            sb.append(",");
-                            sb.append(val);
-                        } else if (null != val) {
-                            sb.append(val);
-                        }
-                    }
-                    if (sb.length() > 0) {
-                        return sb.toString();
-                    }
-                } else {
-                    final String val = applySingleSelector(inst, selPart);
-                    if (null != val) {
-                        return val;
-                    }
-                }
+    long getScopeStaleSince() {
+        long since = 0;
+        for (final ScopeNodes nodes : scopeNodes.values()) {
+            if (nodes.stale && (0 == since || nodes.queried < since)) {
+                since = nodes.queried;
             }
         }
-        return defaultValue;
+        return since;
     }
 
+    /**
+     * If true, refresh only the instances changed according to the operations log of the project, and list every
+     * instance only once per full resync interval
+     */
+    public void setIncrementalRefresh(final boolean incrementalRefresh) {
+        this.incrementalRefresh = incrementalRefresh;
+    }
 
-    private static String applySingleSelector(final Instance inst, final String selector) throws
-        GeneratorException {
-        if (null != selector && !"".equals(selector)) {
-            try {
-                String value = null;
-                if ("networkInterfaces".equals(selector)) {
-                    for (NetworkInterface netint : inst.getNetworkInterfaces()) {
-                         value = netint.getNetworkIP();
-                    }
-                } else if ("accessConfigs".equals(selector)) {
-                    for (NetworkInterface netint : inst.getNetworkInterfaces()) {
-                         for (AccessConfig accconf : netint.getAccessConfigs()) {
-                             value = accconf.getNatIP();
-                         }
-                    }
-                } else {
-                    try {
-                        value = BeanUtils.getProperty(inst, selector);
-                    } catch (org.apache.commons.beanutils.NestedNullException e) {
-                        // Do nothing
-                    }
+    /**
+     * If true, list only the status and network interfaces of the instances to update the nodes, and list every
+     * instance in full only once per full resync interval. Incremental refresh takes precedence.
+     */
+    public void setStatusRefresh(final boolean statusRefresh) {
+        this.statusRefresh = statusRefresh;
+    }
+
+    /**
+     * Set the maximum time between two queries listing every instance, when refreshing incrementally or by status
+     */
+    public void setFullResyncInterval(final long fullResyncInterval) {
+        this.fullResyncInterval = fullResyncInterval;
+    }
+
+    /**
+     * Set how long the nodes of a scope which cannot be listed are kept, 0 or less for no limit
+     */
+    void setMaxScopeStaleness(final long maxScopeStaleness) {
+        this.maxScopeStaleness = maxScopeStaleness;
+    }
+
+    /**
+     * Compile the "filter=value" params and the running state option into a Compute API filter expression, so the
+     * filtering happens server side. Params which are not a simple "field=value" are passed through as written.
+     *
+     * @return the filter expression, or null if nothing should be filtered
+     */
+    static String buildFilter(final List<String> filterParams, final boolean runningStateOnly) {
+        final List<String> expressions = new ArrayList<String>();
+        if (runningStateOnly) {
+            expressions.add("(status = RUNNING)");
+        }
+        if (null != filterParams) {
+            for (final String param : filterParams) {
+                final String trimmed = param.trim();
+                if ("".equals(trimmed)) {
+                    continue;
                 }
-                if (null != value) {
-                    return value;
+                final Matcher m = FILTER_PARAM_PATTERN.matcher(trimmed);
+                if (m.matches()) {
+                    expressions.add("(" + m.group(1) + " = \"" + unquote(m.group(2).trim()).replace("\"", "\\\"")
+                                    + "\")");
+                } else {
+                    expressions.add("(" + trimmed + ")");
                 }
-            } catch (Exception e) {
-                throw new GeneratorException(e);
             }
         }
-
-        return null;
+        if (expressions.isEmpty()) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final String expression : expressions) {
+            if (sb.length() > 0) {
+                sb.append(" AND ");
+            }
+            sb.append(expression);
+        }
+        return sb.toString();
     }
 
+    static String unquote(final String value) {
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
 
     /**
      * Return true if runningStateOnly
@@ -419,12 +912,137 @@ class InstanceToNodeMapper {
         this.filterParams = filterParams;
     }
 
+    /**
+     * Set the number of threads used to map the instances of a page, 0 or less for the number of processors
+     */
+    public void setMappingParallelism(final int mappingParallelism) {
+        this.mappingParallelism = mappingParallelism > 0 ? mappingParallelism
+                                                         : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Return the node cache, e.g. for its hit and miss counters
+     */
+    NodeCache getNodeCache() {
+        return nodeCache;
+    }
+
+    /**
+     * If true, parse the instance list responses as a stream, keeping only the fields the mapping needs, instead of
+     * building Instance objects
+     */
+    public void setStreamingParse(final boolean streamingParse) {
+        this.streamingParse = streamingParse;
+    }
+
+    /**
+     * If true, list the instances of each zone in parallel instead of using the aggregated list of the project
+     */
+    public void setZonalQuery(final boolean zonalQuery) {
+        this.zonalQuery = zonalQuery;
+    }
+
+    /**
+     * Set the zones and regions to query, empty for every zone of the project
+     */
+    public void setZoneAllowlist(final Set<String> zoneAllowlist) {
+        this.zoneAllowlist = null != zoneAllowlist ? zoneAllowlist : Collections.<String>emptySet();
+    }
+
+    /**
+     * Set how long ago an identical listing of another source may have completed for its pages to be used instead of
+     * listing the instances again, 0 to only share listings still running
+     */
+    void setListingReuseWindow(final long listingReuseWindow) {
+        this.listingReuseWindow = Math.max(0, listingReuseWindow);
+    }
+
+    /**
+     * Set the maximum number of zones listed at the same time by the zonal query
+     */
+    public void setZoneConcurrency(final int zoneConcurrency) {
+        this.zoneConcurrency = Math.max(1, zoneConcurrency);
+    }
+
+    /**
+     * Return the circuit breaker of this mapper's queries
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Return the rate limiter of the API requests to this mapper's project, e.g. to set the rate or read its counters
+     */
+    RateLimiter getRateLimiter() {
+        return RateLimiter.forKey(credentialKey, projectId);
+    }
+
+    public String getProjectId() {
+        return projectId;
+    }
+
     public void setProjectId(final String projectId) {
         this.projectId = projectId;
+        projectZones.clear();
     }
 
     public void setMapping(Properties mapping) {
         this.mapping = mapping;
+        this.plan = MappingPlan.compile(mapping);
+        nodeCache.clear();
+        scopeNodes = Collections.emptyMap();
+        lastFullQuery = 0;
+        instanceFields = InstanceFieldMask.instanceFields(plan);
+        this.fullList = new ListMask(instanceFields);
+        this.statusList = new ListMask(InstanceFieldMask.statusFields(plan));
+    }
+
+    /**
+     * Receives each page of instances as soon as it has been fetched
+     */
+    interface InstancePageHandler {
+        /**
+         * @param scope the scope of the instances, e.g. "zones/us-central1-a"
+         */
+        void handlePage(String scope, List<? extends Map<String, Object>> instances);
+
+        /**
+         * The scope could not be listed, so its instances are missing
+         */
+        void scopeFailed(String scope, String reason);
+    }
+
+    /**
+     * The "fields" parameters and the streaming parser of the instance list requests for a set of instance fields
+     */
+    private static class ListMask {
+        final String aggregatedListFields;
+        final String listFields;
+        final AggregatedListParser parser;
+
+        ListMask(final String instanceFields) {
+            this.aggregatedListFields = InstanceFieldMask.aggregatedListFields(instanceFields);
+            this.listFields = InstanceFieldMask.listFields(instanceFields);
+            this.parser = new AggregatedListParser(ComputeClients.JSON_FACTORY, instanceFields);
+        }
+    }
+
+    /**
+     * The nodes of a scope and the time the query listing them started
+     */
+    private static class ScopeNodes {
+        /** the nodes by instance name */
+        final Map<String, INodeEntry> nodes;
+        final long queried;
+        /** true if the scope could not be listed by the last query */
+        final boolean stale;
+
+        ScopeNodes(final Map<String, INodeEntry> nodes, final long queried, final boolean stale) {
+            this.nodes = nodes;
+            this.queried = queried;
+            this.stale = stale;
+        }
     }
 
     public static class GeneratorException extends Exception {
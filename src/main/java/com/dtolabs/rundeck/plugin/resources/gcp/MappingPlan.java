@@ -0,0 +1,361 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* MappingPlan.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * MappingPlan is a mapping definition compiled once, so that converting an instance to a node only has to evaluate the
+ * selectors.
+ * <p/>
+ * The mapping keys are classified up front into the tags selector, the specific tag selectors, the attribute defaults
+ * and the attribute selectors, and every selector is split into its alternatives and compiled into a {@link Selector}.
+ * A mapping entry with a selector which cannot be compiled is ignored, so the tag or attribute is not mapped.
+ */
+class MappingPlan {
+    static final Logger logger = Logger.getLogger(MappingPlan.class);
+    private static final Pattern TAG_SELECTOR = Pattern.compile("^tag\\.(.+?)\\.selector$");
+    private static final Pattern ATTRIBUTE_DEFAULT = Pattern.compile("^([^.]+?)\\.default$");
+    private static final Pattern ATTRIBUTE_SELECTOR = Pattern.compile("^([^.]+?)\\.selector$");
+    /** Root fields of the selectors which the status refresh can update, as they change when an instance restarts */
+    private static final Set<String> STATUS_ROOT_FIELDS = new HashSet<String>(Arrays.asList("status",
+                                                                                            "networkInterfaces",
+                                                                                            "accessConfigs"));
+
+    /** alternatives of the tags selector, each a list of selectors whose values are merged */
+    private final Selector[][] tagsSelector;
+    private final String tagsDefault;
+    private final List<TagSelector> tagSelectors;
+    private final Map<String, String> defaults;
+    private final List<AttributeSelector> attributeSelectors;
+    private final List<TagSelector> statusTagSelectors = new ArrayList<TagSelector>();
+    private final List<AttributeSelector> statusAttributeSelectors = new ArrayList<AttributeSelector>();
+
+    private MappingPlan(final Selector[][] tagsSelector, final String tagsDefault, final List<TagSelector> tagSelectors,
+                        final Map<String, String> defaults, final List<AttributeSelector> attributeSelectors) {
+        this.tagsSelector = tagsSelector;
+        this.tagsDefault = tagsDefault;
+        this.tagSelectors = tagSelectors;
+        this.defaults = defaults;
+        this.attributeSelectors = attributeSelectors;
+        for (final TagSelector tagSelector : tagSelectors) {
+            if (readsStatusOnly(tagSelector.alternatives)) {
+                statusTagSelectors.add(tagSelector);
+            }
+        }
+        boolean hasNodename = false;
+        for (final AttributeSelector attributeSelector : attributeSelectors) {
+            hasNodename |= "nodename".equals(attributeSelector.attrName);
+        }
+        for (final AttributeSelector attributeSelector : attributeSelectors) {
+            //the nodename, or the hostname it falls back to, must not change
+            final boolean naming = "nodename".equals(attributeSelector.attrName)
+                                   || (!hasNodename && "hostname".equals(attributeSelector.attrName));
+            if (!naming && readsStatusOnly(attributeSelector.alternatives)) {
+                statusAttributeSelectors.add(attributeSelector);
+            }
+        }
+    }
+
+    private static boolean readsStatusOnly(final Selector[] alternatives) {
+        for (final Selector selector : alternatives) {
+            if (!STATUS_ROOT_FIELDS.contains(InstanceFieldMask.rootField(selector.expression()))) {
+                return false;
+            }
+        }
+        return alternatives.length > 0;
+    }
+
+    /**
+     * Compile the mapping definition
+     */
+    static MappingPlan compile(final Properties mapping) {
+        Selector[][] tagsSelector = null;
+        final String tagsSelectorValue = mapping.getProperty("tags.selector");
+        if (null != tagsSelectorValue) {
+            final String[] alternatives = tagsSelectorValue.split(",");
+            try {
+                tagsSelector = new Selector[alternatives.length][];
+                for (int i = 0; i < alternatives.length; i++) {
+                    tagsSelector[i] = compileAll(alternatives[i].split(Pattern.quote("|")));
+                }
+            } catch (IllegalArgumentException e) {
+                ignored("tags.selector", e);
+                tagsSelector = null;
+            }
+        }
+        final List<TagSelector> tagSelectors = new ArrayList<TagSelector>();
+        final Map<String, String> defaults = new LinkedHashMap<String, String>();
+        final List<AttributeSelector> attributeSelectors = new ArrayList<AttributeSelector>();
+        for (final String key : new TreeSet<String>(mapping.stringPropertyNames())) {
+            try {
+                compileEntry(mapping, key, tagSelectors, defaults, attributeSelectors);
+            } catch (IllegalArgumentException e) {
+                ignored(key, e);
+            }
+        }
+        return new MappingPlan(tagsSelector, mapping.getProperty("tags.default"),
+                               Collections.unmodifiableList(tagSelectors), Collections.unmodifiableMap(defaults),
+                               Collections.unmodifiableList(attributeSelectors));
+    }
+
+    private static void ignored(final String key, final IllegalArgumentException e) {
+        logger.warn("Ignoring mapping " + key + ", its selector is invalid: " + e.getMessage());
+    }
+
+    private static void compileEntry(final Properties mapping, final String key, final List<TagSelector> tagSelectors,
+                                     final Map<String, String> defaults,
+                                     final List<AttributeSelector> attributeSelectors) {
+        final String value = mapping.getProperty(key);
+        final Matcher tagMatcher = TAG_SELECTOR.matcher(key);
+        if (tagMatcher.matches()) {
+            //split selector by = if present
+            final String[] selparts = value.split("=");
+            tagSelectors.add(new TagSelector(tagMatcher.group(1), compileAll(selparts[0].split(",")),
+                                             selparts.length > 1 ? selparts[1] : null));
+        }
+        final Matcher defaultMatcher = ATTRIBUTE_DEFAULT.matcher(key);
+        //apply default values which do not have corresponding selector, checked as "NAME.default.selector"
+        if (defaultMatcher.matches() && "".equals(mapping.getProperty(key + ".selector", ""))) {
+            defaults.put(defaultMatcher.group(1), value);
+        }
+        final Matcher attributeMatcher = ATTRIBUTE_SELECTOR.matcher(key);
+        if (attributeMatcher.matches() && !"tags".equals(attributeMatcher.group(1))) {
+            final String attrName = attributeMatcher.group(1);
+            attributeSelectors.add(new AttributeSelector(attrName, compileAll(value.split(",")),
+                                                         mapping.getProperty(attrName + ".default")));
+        }
+    }
+
+    private static Selector[] compileAll(final String[] expressions) {
+        final Selector[] selectors = new Selector[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            selectors[i] = Selector.compile(expressions[i]);
+        }
+        return selectors;
+    }
+
+    /**
+     * Return every single selector of the plan, e.g. for working out which instance fields are used
+     */
+    List<Selector> selectors() {
+        final List<Selector> selectors = new ArrayList<Selector>();
+        if (null != tagsSelector) {
+            for (final Selector[] merged : tagsSelector) {
+                selectors.addAll(Arrays.asList(merged));
+            }
+        }
+        for (final TagSelector tagSelector : tagSelectors) {
+            selectors.addAll(Arrays.asList(tagSelector.alternatives));
+        }
+        for (final AttributeSelector attributeSelector : attributeSelectors) {
+            selectors.addAll(Arrays.asList(attributeSelector.alternatives));
+        }
+        return selectors;
+    }
+
+    /**
+     * Return the selectors which {@link #patchStatus(INodeEntry, Map)} evaluates, e.g. for working out which instance
+     * fields the status refresh needs
+     */
+    List<Selector> statusSelectors() {
+        final List<Selector> selectors = new ArrayList<Selector>();
+        for (final TagSelector tagSelector : statusTagSelectors) {
+            selectors.addAll(Arrays.asList(tagSelector.alternatives));
+        }
+        for (final AttributeSelector attributeSelector : statusAttributeSelectors) {
+            selectors.addAll(Arrays.asList(attributeSelector.alternatives));
+        }
+        return selectors;
+    }
+
+    /**
+     * Update the tags and attributes selected only from the status and network interfaces of the instance, e.g. the
+     * "state" attribute and the "running" tag, in a node mapped earlier from the same instance. Everything else is
+     * kept as it was mapped.
+     *
+     * @param inst the instance, with at least the fields read by the {@link #statusSelectors()}
+     *
+     * @return the node if nothing changed, otherwise an updated copy, as the node may be shared with other node sets
+     */
+    @SuppressWarnings("unchecked")
+    INodeEntry patchStatus(final INodeEntry node, final Map<String, ?> inst) {
+        final HashSet tags = null != node.getTags() ? new HashSet(node.getTags()) : new HashSet();
+        final HashMap<String, String> attributes = new HashMap<String, String>(node.getAttributes());
+        boolean changed = false;
+        for (final TagSelector tagSelector : statusTagSelectors) {
+            final String value = first(inst, tagSelector.alternatives, null);
+            if (null != value && (null == tagSelector.value || value.equals(tagSelector.value))) {
+                changed |= tags.add(tagSelector.tagName);
+            } else {
+                changed |= tags.remove(tagSelector.tagName);
+            }
+        }
+        for (final AttributeSelector attributeSelector : statusAttributeSelectors) {
+            final String value = first(inst, attributeSelector.alternatives, attributeSelector.defaultValue);
+            final String previous = null != value ? attributes.put(attributeSelector.attrName, value)
+                                                  : attributes.remove(attributeSelector.attrName);
+            changed |= null != value ? !value.equals(previous) : null != previous;
+        }
+        if (!changed) {
+            return node;
+        }
+        final NodeEntryImpl copy = new NodeEntryImpl();
+        copy.setAttributes(attributes);
+        copy.setTags(tags);
+        return copy;
+    }
+
+    /**
+     * Convert an GCP GCE Instance, or any JSON map of its fields, to a Rundeck INodeEntry
+     */
+    @SuppressWarnings("unchecked")
+    INodeEntry toNode(final Map<String, ?> inst, final String projectId) throws
+        InstanceToNodeMapper.GeneratorException {
+        final NodeEntryImpl node = new NodeEntryImpl();
+        final HashSet tags = new HashSet();
+        if (null != tagsSelector) {
+            final String value = firstMerged(inst, tagsSelector, tagsDefault);
+            if (null != value) {
+                for (final String s : value.split(",")) {
+                    tags.add(s.trim());
+                }
+                //add in projectId as a tag
+                tags.add(projectId.trim());
+            }
+        }
+        //apply specific tag selectors
+        for (final TagSelector tagSelector : tagSelectors) {
+            final String value = first(inst, tagSelector.alternatives, null);
+            if (null != value && (null == tagSelector.value || value.equals(tagSelector.value))) {
+                tags.add(tagSelector.tagName);
+            }
+        }
+        final HashMap<String, String> attributes = new HashMap<String, String>();
+        node.setAttributes(attributes);
+        //sets the "tags" attribute as well, so the attributes must be set first
+        node.setTags(tags);
+
+        //apply default values
+        for (final Map.Entry<String, String> entry : defaults.entrySet()) {
+            if (null != entry.getValue()) {
+                attributes.put(entry.getKey(), entry.getValue());
+            }
+            //add in an extra node attribute called projectId
+            attributes.put("projectId", projectId);
+        }
+        //evaluate selectors
+        for (final AttributeSelector attributeSelector : attributeSelectors) {
+            final String value = first(inst, attributeSelector.alternatives, attributeSelector.defaultValue);
+            if (null != value) {
+                attributes.put(attributeSelector.attrName, value);
+            }
+        }
+
+        assert node.getHostname() != null;
+
+        String name = node.getNodename();
+        if (null == name || "".equals(name)) {
+            name = node.getHostname();
+        }
+        if ((null == name || "".equals(name)) && null != inst.get("id")) {
+            name = inst.get("id").toString();
+        }
+        if (null == name || "".equals(name)) {
+            throw new InstanceToNodeMapper.GeneratorException("Instance has no name or id: " + inst);
+        }
+        node.setNodename(name);
+
+        return node;
+    }
+
+    /**
+     * Return the value of the first alternative selecting a value, otherwise the defaultValue
+     */
+    private static String first(final Map<String, ?> inst, final Selector[] alternatives, final String defaultValue) {
+        for (final Selector selector : alternatives) {
+            final String val = selector.apply(inst);
+            if (null != val) {
+                return val;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Return the comma-joined values of the first alternative selecting any value, otherwise the defaultValue
+     */
+    private static String firstMerged(final Map<String, ?> inst, final Selector[][] alternatives,
+                                      final String defaultValue) {
+        for (final Selector[] merged : alternatives) {
+            final StringBuilder sb = new StringBuilder();
+            for (final Selector selector : merged) {
+                final String val = selector.apply(inst);
+                if (null != val) {
+                    if (sb.length() > 0) {
+                        sb.append(",");
+                    }
+                    sb.append(val);
+                }
+            }
+            if (sb.length() > 0) {
+                return sb.toString();
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * A "tag.NAME.selector" entry: the tag is added if the selector has a value, or the given value if any
+     */
+    private static class TagSelector {
+        final String tagName;
+        final Selector[] alternatives;
+        final String value;
+
+        TagSelector(final String tagName, final Selector[] alternatives, final String value) {
+            this.tagName = tagName;
+            this.alternatives = alternatives;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A "NAME.selector" entry and the default value of the attribute
+     */
+    private static class AttributeSelector {
+        final String attrName;
+        final Selector[] alternatives;
+        final String defaultValue;
+
+        AttributeSelector(final String attrName, final Selector[] alternatives, final String defaultValue) {
+            this.attrName = attrName;
+            this.alternatives = alternatives;
+            this.defaultValue = defaultValue;
+        }
+    }
+}
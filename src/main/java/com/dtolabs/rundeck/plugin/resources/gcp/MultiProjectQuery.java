@@ -0,0 +1,314 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* MultiProjectQuery.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * MultiProjectQuery queries the instances of several projects in parallel and merges them into one node set.
+ * <p/>
+ * At most {@code concurrency} projects are queried at the same time, on the threads shared by every source. The
+ * results are merged in the configured project order; a nodename found in more than one project is qualified with the
+ * project id, as "projectId/nodename", in every one of them. Each query logs a summary of the time every project took.
+ * <p/>
+ * When the query of a project fails, its last good nodes are used instead, marked as stale, and
+ * {@link #getStaleSince()} reports when they were queried, so the source can tell a merged node set with stale projects
+ * from a fresh one and apply its max staleness. Without any good nodes yet, the whole query fails.
+ */
+class MultiProjectQuery {
+    static final Logger logger = Logger.getLogger(MultiProjectQuery.class);
+
+    private final List<InstanceToNodeMapper> mappers;
+    private final int concurrency;
+    private final QueryExecutor queries = new QueryExecutor();
+    private final Map<String, Long> projectTimings = new ConcurrentHashMap<String, Long>();
+    private final Map<String, LastGood> lastGood = new ConcurrentHashMap<String, LastGood>();
+
+    MultiProjectQuery(final List<InstanceToNodeMapper> mappers, final int concurrency) {
+        this.mappers = mappers;
+        this.concurrency = Math.max(1, Math.min(concurrency, mappers.size()));
+    }
+
+    /**
+     * Cancel the queries in flight and close every mapper
+     */
+    void close() {
+        queries.close();
+        for (final InstanceToNodeMapper mapper : mappers) {
+            mapper.close();
+        }
+    }
+
+    List<InstanceToNodeMapper> getMappers() {
+        return mappers;
+    }
+
+    /**
+     * Milliseconds since the nodes of the most out of date project or zone were queried, 0 if the last query of every
+     * project and zone succeeded
+     */
+    long getStalenessMillis() {
+        long staleness = 0;
+        for (final InstanceToNodeMapper mapper : mappers) {
+            staleness = Math.max(staleness, mapper.getScopeStalenessMillis());
+        }
+        for (final LastGood good : lastGood.values()) {
+            if (good.stale) {
+                staleness = Math.max(staleness, System.currentTimeMillis() - good.queried);
+            }
+        }
+        return staleness;
+    }
+
+    /**
+     * The time the oldest stale nodes of the last query were queried, of a project or of a zone that could not be
+     * listed, 0 if the last query of every project and zone succeeded
+     */
+    long getStaleSince() {
+        long since = 0;
+        for (final InstanceToNodeMapper mapper : mappers) {
+            final long scopeSince = mapper.getScopeStaleSince();
+            if (scopeSince > 0 && (0 == since || scopeSince < since)) {
+                since = scopeSince;
+            }
+        }
+        for (final LastGood good : lastGood.values()) {
+            if (good.stale && (0 == since || good.queried < since)) {
+                since = good.queried;
+            }
+        }
+        return since;
+    }
+
+    /**
+     * The time the last query of each project took, in the configured project order, e.g. "proj-a 120ms, proj-b 80ms"
+     */
+    String describeProjectTimings() {
+        final StringBuilder sb = new StringBuilder();
+        for (final InstanceToNodeMapper mapper : mappers) {
+            final Long time = projectTimings.get(mapper.getProjectId());
+            if (null != time) {
+                sb.append(sb.length() > 0 ? ", " : "").append(mapper.getProjectId()).append(' ').append(time)
+                  .append("ms");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Query every project and return the pending merged node set
+     */
+    CompletableFuture<INodeSet> performQueryAsync() {
+        if (1 == mappers.size()) {
+            final InstanceToNodeMapper mapper = mappers.get(0);
+            final long start = System.currentTimeMillis();
+            return mapper.performQueryAsync().handle(new BiFunction<INodeSet, Throwable, INodeSet>() {
+                public INodeSet apply(final INodeSet nodes, final Throwable error) {
+                    return projectResult(mapper, start, nodes, error);
+                }
+            });
+        }
+        final long started = System.currentTimeMillis();
+        final List<CompletableFuture<INodeSet>> results = new ArrayList<CompletableFuture<INodeSet>>();
+        final Queue<Integer> next = new ConcurrentLinkedQueue<Integer>();
+        for (int i = 0; i < mappers.size(); i++) {
+            results.add(new CompletableFuture<INodeSet>());
+            next.add(i);
+        }
+        //each lane queries the next project until none is left
+        for (int lane = 0; lane < concurrency; lane++) {
+            queries.submit(new Callable<Void>() {
+                public Void call() {
+                    Integer i;
+                    while (null != (i = next.poll())) {
+                        final InstanceToNodeMapper mapper = mappers.get(i);
+                        final long start = System.currentTimeMillis();
+                        try {
+                            results.get(i).complete(projectResult(mapper, start, mapper.performQuery(), null));
+                        } catch (Throwable t) {
+                            try {
+                                results.get(i).complete(projectResult(mapper, start, null, t));
+                            } catch (Throwable e) {
+                                results.get(i).completeExceptionally(e);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            }).whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(final Void v, final Throwable error) {
+                    if (null != error) {
+                        //cancelled, fail the projects left
+                        for (final CompletableFuture<INodeSet> result : results) {
+                            result.completeExceptionally(error);
+                        }
+                    }
+                }
+            });
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()])).thenApply(
+                new Function<Void, INodeSet>() {
+                    public INodeSet apply(final Void v) {
+                        final List<INodeSet> nodeSets = new ArrayList<INodeSet>();
+                        for (final CompletableFuture<INodeSet> result : results) {
+                            nodeSets.add(result.join());
+                        }
+                        logger.info("Queried " + mappers.size() + " projects in "
+                                    + (System.currentTimeMillis() - started) + "ms: " + describeProjectTimings());
+                        return merge(nodeSets);
+                    }
+                });
+    }
+
+    /**
+     * Refresh the given instances of one project, and return the merged nodes of every project, with the last good
+     * nodes of the other projects
+     *
+     * @param instances instances as "zone/name", or instance URLs
+     *
+     * @throws IOException if the instances cannot be refreshed, or a project has not been queried yet
+     */
+    INodeSet refreshInstances(final String projectId, final Collection<String> instances) throws IOException {
+        InstanceToNodeMapper mapper = null;
+        for (final InstanceToNodeMapper candidate : mappers) {
+            if (candidate.getProjectId().equals(projectId)) {
+                mapper = candidate;
+            }
+        }
+        if (null == mapper) {
+            throw new IllegalArgumentException("Not a project of this source: " + projectId);
+        }
+        final INodeSet nodes = mapper.refreshInstances(instances);
+        final LastGood previous = lastGood.get(projectId);
+        lastGood.put(projectId, null != previous ? new LastGood(nodes, previous.queried, previous.stale)
+                                                 : new LastGood(nodes, System.currentTimeMillis(), false));
+        if (1 == mappers.size()) {
+            return nodes;
+        }
+        final List<INodeSet> nodeSets = new ArrayList<INodeSet>();
+        for (final InstanceToNodeMapper each : mappers) {
+            final LastGood good = lastGood.get(each.getProjectId());
+            if (null == good) {
+                throw new IOException("Project " + each.getProjectId() + " has not been queried yet");
+            }
+            nodeSets.add(good.stale ? GCPResourceModelSource.NodeSnapshot.markStale(good.nodes, good.queried)
+                                    : good.nodes);
+        }
+        return merge(nodeSets);
+    }
+
+    /**
+     * Record the nodes of a successful project query, or fall back to the last good nodes of the project
+     *
+     * @throws CompletionException with the query error if there are no last good nodes
+     */
+    private INodeSet projectResult(final InstanceToNodeMapper mapper, final long start, final INodeSet nodes,
+                                   final Throwable error) {
+        final String projectId = mapper.getProjectId();
+        final long time = System.currentTimeMillis() - start;
+        projectTimings.put(projectId, time);
+        if (null == error) {
+            lastGood.put(projectId, new LastGood(nodes, start, false));
+            logger.info("Project " + projectId + ": " + nodes.getNodes().size() + " nodes in " + time + "ms");
+            return nodes;
+        }
+        final Throwable cause = error instanceof CompletionException && null != error.getCause() ? error.getCause()
+                                                                                                  : error;
+        final LastGood good = lastGood.get(projectId);
+        if (null == good) {
+            throw new CompletionException("Query of project " + projectId + " failed: " + cause.getMessage(), cause);
+        }
+        lastGood.put(projectId, new LastGood(good.nodes, good.queried, true));
+        logger.warn("Query of project " + projectId + " failed, keeping its " + good.nodes.getNodes().size()
+                    + " nodes from " + (System.currentTimeMillis() - good.queried) / 1000 + "s ago: "
+                    + cause.getMessage());
+        return GCPResourceModelSource.NodeSnapshot.markStale(good.nodes, good.queried);
+    }
+
+    /**
+     * Merge the node sets of the projects, qualifying the nodenames found in more than one project
+     */
+    INodeSet merge(final List<INodeSet> nodeSets) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (final INodeSet nodeSet : nodeSets) {
+            for (final String name : nodeSet.getNodeNames()) {
+                final Integer count = counts.get(name);
+                counts.put(name, null == count ? 1 : count + 1);
+            }
+        }
+        final NodeSetImpl merged = new NodeSetImpl();
+        for (int i = 0; i < nodeSets.size(); i++) {
+            final String projectId = mappers.get(i).getProjectId();
+            for (final INodeEntry node : nodeSets.get(i).getNodes()) {
+                if (counts.get(node.getNodename()) > 1) {
+                    merged.putNode(qualified(node, projectId));
+                } else {
+                    merged.putNode(node);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * A copy of the node named "projectId/nodename". Nodes may be shared with the node cache, so they are never
+     * renamed in place.
+     */
+    @SuppressWarnings("unchecked")
+    private static INodeEntry qualified(final INodeEntry node, final String projectId) {
+        final NodeEntryImpl copy = new NodeEntryImpl();
+        copy.setAttributes(new HashMap<String, String>(node.getAttributes()));
+        copy.setTags(null != node.getTags() ? new HashSet(node.getTags()) : new HashSet());
+        copy.setNodename(projectId + "/" + node.getNodename());
+        return copy;
+    }
+
+    /**
+     * The nodes of the last successful query of a project
+     */
+    private static class LastGood {
+        final INodeSet nodes;
+        final long queried;
+        /** true if the last query of the project failed */
+        final boolean stale;
+
+        LastGood(final INodeSet nodes, final long queried, final boolean stale) {
+            this.nodes = nodes;
+            this.queried = queried;
+            this.stale = stale;
+        }
+    }
+}
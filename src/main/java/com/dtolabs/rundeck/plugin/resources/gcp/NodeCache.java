@@ -0,0 +1,159 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* NodeCache.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NodeCache keeps the nodes mapped by the previous refresh, keyed by instance id, so that unchanged instances reuse
+ * their node instead of being mapped again.
+ * <p/>
+ * An instance is unchanged if its fingerprint, label fingerprint, metadata fingerprint and status are the same as when
+ * its node was mapped. Each refresh fills a new generation of the cache, which replaces the previous one once the
+ * refresh succeeds, so deleted instances drop out.
+ */
+class NodeCache {
+    /** Instance fields the cache key is made of, to be included in the partial response. */
+    static final List<String> KEY_FIELDS = Arrays.asList("fingerprint", "labelFingerprint", "status");
+    static final String METADATA_KEY_FIELD = "metadata(fingerprint)";
+
+    private volatile Map<String, CachedNode> current = Collections.emptyMap();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Start filling a new generation of the cache
+     */
+    Generation nextGeneration() {
+        return new Generation(current);
+    }
+
+    /**
+     * Forget every cached node, e.g. when the mapping changes
+     */
+    void clear() {
+        current = Collections.emptyMap();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The cache key of an instance, or null if the instance carries no fingerprint to compare
+     */
+    static String fingerprint(final Map<String, ?> inst) {
+        final Object fingerprint = inst.get("fingerprint");
+        final Object labelFingerprint = inst.get("labelFingerprint");
+        Object metadataFingerprint = null;
+        if (inst.get("metadata") instanceof Map) {
+            metadataFingerprint = ((Map<?, ?>) inst.get("metadata")).get("fingerprint");
+        }
+        if (null == fingerprint && null == labelFingerprint && null == metadataFingerprint) {
+            return null;
+        }
+        return fingerprint + "/" + labelFingerprint + "/" + metadataFingerprint + "/" + inst.get("status");
+    }
+
+    /**
+     * The nodes of one refresh
+     */
+    class Generation {
+        private final Map<String, CachedNode> previous;
+        private final Map<String, CachedNode> next = new ConcurrentHashMap<String, CachedNode>();
+        private final AtomicLong generationHits = new AtomicLong();
+        private final AtomicLong generationMisses = new AtomicLong();
+
+        private Generation(final Map<String, CachedNode> previous) {
+            this.previous = previous;
+        }
+
+        /**
+         * Return the node of the previous refresh if the instance is unchanged, otherwise null
+         */
+        INodeEntry lookup(final Map<String, ?> inst) {
+            final Object id = inst.get("id");
+            final String fingerprint = fingerprint(inst);
+            if (null != id && null != fingerprint) {
+                final CachedNode cached = previous.get(id.toString());
+                if (null != cached && fingerprint.equals(cached.fingerprint)) {
+                    next.put(id.toString(), cached);
+                    generationHits.incrementAndGet();
+                    return cached.node;
+                }
+            }
+            generationMisses.incrementAndGet();
+            return null;
+        }
+
+        /**
+         * Keep the node mapped from the instance for the next refresh
+         */
+        void store(final Map<String, ?> inst, final INodeEntry node) {
+            final Object id = inst.get("id");
+            final String fingerprint = fingerprint(inst);
+            if (null != id && null != fingerprint) {
+                next.put(id.toString(), new CachedNode(fingerprint, node));
+            }
+        }
+
+        /**
+         * Replace the cache with this generation
+         */
+        void commit() {
+            current = next;
+            hits.addAndGet(generationHits.get());
+            misses.addAndGet(generationMisses.get());
+        }
+
+        /**
+         * The instances of this generation whose node was reused
+         */
+        long getHits() {
+            return generationHits.get();
+        }
+
+        /**
+         * The instances of this generation which had to be mapped
+         */
+        long getMisses() {
+            return generationMisses.get();
+        }
+    }
+
+    private static class CachedNode {
+        final String fingerprint;
+        final INodeEntry node;
+
+        CachedNode(final String fingerprint, final INodeEntry node) {
+            this.fingerprint = fingerprint;
+            this.node = node;
+        }
+    }
+}
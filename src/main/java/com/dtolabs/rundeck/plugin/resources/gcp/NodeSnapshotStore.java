@@ -0,0 +1,259 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* NodeSnapshotStore.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * NodeSnapshotStore keeps the last good node set of a source in a local file, so that it can be served right away after
+ * a restart while the first query runs.
+ * <p/>
+ * The file is a gzipped binary list of the attributes and tags of each node. It is named after the project and the
+ * SHA-256 of the source configuration, so a changed filter or mapping never serves nodes produced by the old one. The
+ * store keeps the SHA-256 of the nodes it last read or wrote, and does not write the file again for the same nodes.
+ */
+class NodeSnapshotStore {
+    static final Logger logger = Logger.getLogger(NodeSnapshotStore.class);
+    /** 2: strings are written as length-prefixed UTF-8, as writeUTF cannot write more than 64KB */
+    private static final int FORMAT_VERSION = 2;
+
+    private final File file;
+    /** digest of the nodes in the file, null if unknown */
+    private volatile byte[] storedDigest;
+
+    NodeSnapshotStore(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Create the store for a source
+     *
+     * @param directory     snapshot directory, or null for the default one
+     * @param projectId     the project
+     * @param configuration everything else that determines the nodes, e.g. filters and mapping
+     */
+    static NodeSnapshotStore forSource(final File directory, final String projectId, final String configuration) {
+        final File dir = null != directory ? directory : defaultDirectory();
+        String name = String.valueOf(projectId).replaceAll("[^A-Za-z0-9_.\\-]", "_");
+        if (name.length() > 64) {
+            //long project lists are told apart by the hash
+            name = name.substring(0, 64);
+        }
+        final MessageDigest digest = sha256();
+        try {
+            digest.update((projectId + "\n" + configuration).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return new NodeSnapshotStore(new File(dir, "gcp-nodes-" + name + "-" + hex(digest.digest()) + ".snapshot"));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * $RDECK_BASE/var/gcp-nodes-plugin when running in Rundeck, otherwise a directory in the temp dir
+     */
+    static File defaultDirectory() {
+        final String rdeckBase = System.getProperty("rdeck.base");
+        if (null != rdeckBase) {
+            return new File(new File(rdeckBase, "var"), "gcp-nodes-plugin");
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "rundeck-gcp-nodes-plugin");
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Return the stored nodes, or null if there is no usable snapshot
+     */
+    INodeSet load() {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            //the digest of the bytes read is the digest of the nodes they were written from
+            final MessageDigest digest = sha256();
+            final DataInputStream in = new DataInputStream(new DigestInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(file))), digest));
+            try {
+                if (FORMAT_VERSION != in.readInt()) {
+                    return null;
+                }
+                final NodeSetImpl nodeSet = new NodeSetImpl();
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    nodeSet.putNode(readNode(in));
+                }
+                storedDigest = digest.digest();
+                return nodeSet;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to read node snapshot " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Replace the stored nodes, unless the file already holds the same nodes. The snapshot is written to a temp file
+     * first, so readers never see a partial file.
+     */
+    void save(final INodeSet nodes) {
+        final File dir = file.getParentFile();
+        try {
+            final byte[] digest = digest(nodes);
+            if (Arrays.equals(digest, storedDigest) && file.isFile()) {
+                logger.debug("Nodes unchanged, not writing node snapshot " + file);
+                return;
+            }
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Unable to create directory " + dir);
+            }
+            final File temp = File.createTempFile(file.getName(), ".tmp", dir);
+            try {
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                        new FileOutputStream(temp))));
+                try {
+                    writeNodes(out, nodes);
+                } finally {
+                    out.close();
+                }
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                storedDigest = digest;
+            } finally {
+                if (temp.exists() && !temp.delete()) {
+                    temp.deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write node snapshot " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The SHA-256 of the nodes as they are written to the file
+     */
+    static byte[] digest(final INodeSet nodes) throws IOException {
+        final MessageDigest digest = sha256();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(
+                new OutputStream() {
+                    public void write(final int b) {
+                    }
+
+                    public void write(final byte[] b, final int off, final int len) {
+                    }
+                }, digest)));
+        writeNodes(out, nodes);
+        out.close();
+        return digest.digest();
+    }
+
+    private static void writeNodes(final DataOutputStream out, final INodeSet nodes) throws IOException {
+        final Collection<INodeEntry> entries = nodes.getNodes();
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (final INodeEntry node : entries) {
+            writeNode(out, node);
+        }
+    }
+
+    private static void writeNode(final DataOutputStream out, final INodeEntry node) throws IOException {
+        final Map<String, String> attributes = null != node.getAttributes() ? node.getAttributes()
+                                                                             : Collections.<String, String>emptyMap();
+        out.writeInt(attributes.size());
+        for (final Map.Entry<String, String> entry : attributes.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, null != entry.getValue() ? entry.getValue() : "");
+        }
+        final Set tags = null != node.getTags() ? node.getTags() : Collections.emptySet();
+        out.writeInt(tags.size());
+        for (final Object tag : tags) {
+            writeString(out, String.valueOf(tag));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static INodeEntry readNode(final DataInputStream in) throws IOException {
+        final int attributeCount = in.readInt();
+        final HashMap<String, String> attributes = new HashMap<String, String>();
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.put(readString(in), readString(in));
+        }
+        final int tagCount = in.readInt();
+        final HashSet tags = new HashSet();
+        for (int i = 0; i < tagCount; i++) {
+            tags.add(readString(in));
+        }
+        final NodeEntryImpl node = new NodeEntryImpl();
+        node.setAttributes(attributes);
+        node.setTags(tags);
+        return node;
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
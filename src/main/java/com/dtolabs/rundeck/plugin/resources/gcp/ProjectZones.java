@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* ProjectZones.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.services.compute.Compute;
+import com.google.api.services.compute.model.Zone;
+import com.google.api.services.compute.model.ZoneList;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ProjectZones caches the zone names of a project, listed for the per zone instance query, and applies the zone and
+ * region allowlist.
+ * <p/>
+ * Zones rarely change, so the list is reused for {@code ttl} milliseconds before being listed again.
+ */
+class ProjectZones {
+    static final long DEFAULT_TTL = 60 * 60 * 1000L;
+
+    private final long ttl;
+    private volatile Listing listing;
+
+    ProjectZones() {
+        this(DEFAULT_TTL);
+    }
+
+    ProjectZones(final long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Return the zones of the project allowed by the allowlist, listing them if the cached list is missing or expired
+     *
+     * @param allowlist zone or region names, empty to allow every zone
+     */
+    List<String> zones(final Compute compute, final String projectId, final Set<String> allowlist)
+        throws IOException {
+        Listing current = listing;
+        if (null == current || !current.projectId.equals(projectId)
+            || System.currentTimeMillis() - current.listed > ttl) {
+            current = new Listing(projectId, list(compute, projectId), System.currentTimeMillis());
+            listing = current;
+        }
+        final List<String> zones = new ArrayList<String>();
+        for (final String zone : current.zones) {
+            if (allowed(zone, allowlist)) {
+                zones.add(zone);
+            }
+        }
+        return zones;
+    }
+
+    /**
+     * Forget the cached zones
+     */
+    void clear() {
+        listing = null;
+    }
+
+    private static List<String> list(final Compute compute, final String projectId) throws IOException {
+        final List<String> zones = new ArrayList<String>();
+        String pageToken = null;
+        do {
+            final Compute.Zones.List request = compute.zones().list(projectId);
+            request.setFields("nextPageToken,items(name)");
+            if (null != pageToken) {
+                request.setPageToken(pageToken);
+            }
+            final ZoneList result = request.execute();
+            if (null != result.getItems()) {
+                for (final Zone zone : result.getItems()) {
+                    zones.add(zone.getName());
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (null != pageToken && !"".equals(pageToken));
+        return zones;
+    }
+
+    /**
+     * Return true if the zone, e.g. "us-central1-a", or its region, "us-central1", is in the allowlist, or the
+     * allowlist is empty
+     */
+    static boolean allowed(final String zone, final Set<String> allowlist) {
+        if (null == allowlist || allowlist.isEmpty() || allowlist.contains(zone)) {
+            return true;
+        }
+        final int dash = zone.lastIndexOf('-');
+        return dash > 0 && allowlist.contains(zone.substring(0, dash));
+    }
+
+    /**
+     * Return true if the scope of an aggregated list, e.g. "zones/us-central1-a", is allowed. Scopes other than zones
+     * are allowed only if the allowlist is empty.
+     */
+    static boolean scopeAllowed(final String scope, final Set<String> allowlist) {
+        if (null == allowlist || allowlist.isEmpty()) {
+            return true;
+        }
+        return scope.startsWith("zones/") && allowed(scope.substring("zones/".length()), allowlist);
+    }
+
+    private static class Listing {
+        final String projectId;
+        final List<String> zones;
+        final long listed;
+
+        Listing(final String projectId, final List<String> zones, final long listed) {
+            this.projectId = projectId;
+            this.zones = zones;
+            this.listed = listed;
+        }
+    }
+}
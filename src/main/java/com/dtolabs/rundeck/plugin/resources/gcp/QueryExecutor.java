@@ -0,0 +1,115 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* QueryExecutor.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QueryExecutor runs queries on a pool of daemon threads shared by every node source in the JVM, and keeps track of
+ * the queries of its owner, so they can be cancelled when the owner is closed.
+ * <p/>
+ * The pool has at most {@link #MAX_THREADS} threads; further queries wait in its queue. Idle threads end after a
+ * minute, so no thread is left behind by discarded sources.
+ */
+class QueryExecutor {
+    static final int MAX_THREADS = 16;
+
+    private static final ExecutorService POOL = boundedPool("gcp-nodes-query", MAX_THREADS);
+
+    private final Set<Future<?>> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+    private volatile boolean closed = false;
+
+    /**
+     * Create a pool of at most the given number of daemon threads, which end when idle for a minute
+     */
+    static ExecutorService boundedPool(final String name, final int threads) {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                               new LinkedBlockingQueue<Runnable>(),
+                                                               new ThreadFactory() {
+                                                                   public Thread newThread(final Runnable r) {
+                                                                       final Thread thread = new Thread(r, name);
+                                                                       thread.setDaemon(true);
+                                                                       return thread;
+                                                                   }
+                                                               });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Run the query on the shared pool
+     *
+     * @return the pending result, completed with a {@link CancellationException} if the query is cancelled by
+     * {@link #close()}
+     */
+    <T> CompletableFuture<T> submit(final Callable<T> query) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final FutureTask<T> task = new FutureTask<T>(query) {
+            protected void done() {
+                inFlight.remove(this);
+                try {
+                    result.complete(get());
+                } catch (CancellationException e) {
+                    result.completeExceptionally(e);
+                } catch (ExecutionException e) {
+                    result.completeExceptionally(e.getCause());
+                } catch (InterruptedException e) {
+                    //not possible once done
+                    result.completeExceptionally(e);
+                }
+            }
+        };
+        inFlight.add(task);
+        if (closed) {
+            task.cancel(false);
+        } else {
+            POOL.execute(task);
+        }
+        return result;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Cancel the queries in flight, interrupting them, and refuse any further query
+     */
+    void close() {
+        closed = true;
+        for (final Future<?> task : inFlight) {
+            task.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* RateLimiter.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RateLimiter is a token bucket limiting the Compute API requests made with one credential against one project.
+ * <p/>
+ * There is one limiter per credential and project in the JVM, shared by every node source querying that project, so
+ * sources refreshing at the same time stay under the quota together. The bucket holds up to one second of requests;
+ * callers beyond it wait for their turn. A rate limited response holds off every caller of the limiter for the retry
+ * delay.
+ */
+class RateLimiter {
+    static final double DEFAULT_RATE = 20;
+
+    private static final ConcurrentMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+
+    private double permitsPerSecond = DEFAULT_RATE;
+    private double maxPermits = DEFAULT_RATE;
+    private double storedPermits = DEFAULT_RATE;
+    private long lastRefill = System.nanoTime();
+    private long pausedUntil = lastRefill;
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * Return the limiter of the credential and project, creating it with the default rate the first time
+     */
+    static RateLimiter forKey(final String credentialKey, final String projectId) {
+        final String key = credentialKey + "\n" + projectId;
+        RateLimiter limiter = limiters.get(key);
+        if (null == limiter) {
+            final RateLimiter created = new RateLimiter();
+            limiter = limiters.putIfAbsent(key, created);
+            if (null == limiter) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Set the rate in requests per second, 0 or less for no limit
+     */
+    synchronized void setRate(final double permitsPerSecond) {
+        refill(System.nanoTime());
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = Math.max(1, permitsPerSecond);
+        this.storedPermits = Math.min(storedPermits, maxPermits);
+    }
+
+    synchronized double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Wait until a request may be made
+     */
+    void acquire() throws InterruptedIOException {
+        final long wait = reserve();
+        if (wait > 0) {
+            throttled.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the Compute API rate limit");
+            }
+        }
+    }
+
+    /**
+     * Take a permit and return the nanoseconds to wait before using it. Permits taken from an empty bucket are owed,
+     * so the callers after them wait longer.
+     */
+    private synchronized long reserve() {
+        final long now = System.nanoTime();
+        final long paused = Math.max(0, pausedUntil - now);
+        if (permitsPerSecond <= 0) {
+            return paused;
+        }
+        refill(now);
+        storedPermits -= 1;
+        final long owed = storedPermits < 0 ? (long) (-storedPermits / permitsPerSecond * 1e9) : 0;
+        return Math.max(paused, owed);
+    }
+
+    private void refill(final long now) {
+        if (permitsPerSecond > 0) {
+            storedPermits = Math.min(maxPermits, storedPermits + (now - lastRefill) * permitsPerSecond / 1e9);
+        }
+        lastRefill = now;
+    }
+
+    /**
+     * Hold off every request of this limiter for the delay, after the API reported the quota exceeded
+     */
+    synchronized void holdOff(final long millis) {
+        rateLimited.incrementAndGet();
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    void retried() {
+        retried.incrementAndGet();
+    }
+
+    /**
+     * Number of requests which had to wait for the rate limit or a hold off
+     */
+    long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Number of responses reporting the quota exceeded
+     */
+    long getRateLimitedCount() {
+        return rateLimited.get();
+    }
+
+    /**
+     * Number of requests retried after a rate limited or server error response
+     */
+    long getRetriedCount() {
+        return retried.get();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* RefreshScheduler.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import org.apache.log4j.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RefreshScheduler refreshes every registered node source in the background, shortly before its nodes become stale.
+ * <p/>
+ * A source is refreshed when registered, then every refresh interval less a tenth, at times set by its phase key
+ * rather than by when it was registered: sources with the same key are refreshed at the same time, so they share one
+ * instance listing (see {@link SharedQuery}), while the phases of different keys are spread over the interval, so that
+ * sources do not all query the Compute API in the same second. The scheduler only starts the asynchronous refresh of a
+ * source, so a single thread serves every source in the JVM.
+ */
+class RefreshScheduler {
+    static final Logger logger = Logger.getLogger(RefreshScheduler.class);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "gcp-nodes-refresh-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final Map<GCPResourceModelSource, RefreshTask> tasks = Collections.synchronizedMap(
+            new WeakHashMap<GCPResourceModelSource, RefreshTask>());
+
+    private RefreshScheduler() {
+    }
+
+    /**
+     * Start refreshing the source now, and then periodically ahead of its refresh interval. The source is only
+     * weakly referenced, and its refreshes stop once it has been discarded or unregistered.
+     *
+     * @param phaseKey sources registered with the same key and interval are refreshed at the same time
+     */
+    static void register(final GCPResourceModelSource source, final long refreshInterval, final String phaseKey) {
+        if (refreshInterval <= 0) {
+            return;
+        }
+        final RefreshTask task = new RefreshTask(source, refreshInterval, phaseKey);
+        final RefreshTask previous = tasks.put(source, task);
+        if (null != previous) {
+            previous.cancelled = true;
+        }
+        scheduler.execute(task);
+    }
+
+    /**
+     * Stop refreshing the source
+     */
+    static void unregister(final GCPResourceModelSource source) {
+        final RefreshTask task = tasks.remove(source);
+        if (null != task) {
+            task.cancelled = true;
+        }
+    }
+
+    /**
+     * @return true if the source is refreshed in the background
+     */
+    static boolean isRegistered(final GCPResourceModelSource source) {
+        return tasks.containsKey(source);
+    }
+
+    /**
+     * Delay from the time until the next refresh of the key. Refreshes happen every interval less 10%, offset from the
+     * epoch by a hash of the key. One due within a tenth of that period is skipped, as the source has just been
+     * refreshed; the delay still stays below the interval.
+     */
+    static long nextDelay(final long refreshInterval, final String phaseKey, final long now) {
+        final long period = Math.max(1, refreshInterval - refreshInterval / 10);
+        final long phase = Math.floorMod((long) String.valueOf(phaseKey).hashCode(), period);
+        final long delay = period - Math.floorMod(now - phase, period);
+        return delay < period / 10 ? delay + period : delay;
+    }
+
+    private static class RefreshTask implements Runnable {
+        private final WeakReference<GCPResourceModelSource> source;
+        private final long refreshInterval;
+        private final String phaseKey;
+        volatile boolean cancelled = false;
+
+        RefreshTask(final GCPResourceModelSource source, final long refreshInterval, final String phaseKey) {
+            this.source = new WeakReference<GCPResourceModelSource>(source);
+            this.refreshInterval = refreshInterval;
+            this.phaseKey = phaseKey;
+        }
+
+        public void run() {
+            final GCPResourceModelSource current = source.get();
+            if (null == current || cancelled) {
+                return;
+            }
+            try {
+                current.refresh();
+            } catch (RuntimeException e) {
+                logger.warn("Error starting scheduled refresh: " + e.getMessage(), e);
+            }
+            scheduler.schedule(this, nextDelay(refreshInterval, phaseKey, System.currentTimeMillis()),
+                               TimeUnit.MILLISECONDS);
+        }
+    }
+}
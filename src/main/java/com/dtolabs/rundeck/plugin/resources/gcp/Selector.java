@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* Selector.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Selector is a single mapping selector compiled into a chain of property lookups.
+ * <p/>
+ * Instances and all their nested objects are JSON maps, so a selector such as "labels.environment" is evaluated as
+ * {@code instance.get("labels").get("environment")}. The value is converted to a string the way BeanUtils did it: the
+ * first element of a list, otherwise {@code toString()}. A missing value anywhere in the chain selects null.
+ * <p/>
+ * Besides nested properties, a step may be indexed ("disks[0]") or mapped ("labels(environment)"). The selectors
+ * "networkInterfaces" and "accessConfigs" are special and select the internal IP and the external (NAT) IP.
+ */
+final class Selector {
+    private final String expression;
+    private final Function<Object, Object>[] steps;
+
+    private Selector(final String expression, final Function<Object, Object>[] steps) {
+        this.expression = expression;
+        this.steps = steps;
+    }
+
+    /**
+     * Compile a selector expression
+     *
+     * @throws IllegalArgumentException if an index step is not a number
+     */
+    @SuppressWarnings("unchecked")
+    static Selector compile(final String expression) {
+        if ("networkInterfaces".equals(expression)) {
+            return new Selector(expression, new Function[]{NETWORK_IP});
+        }
+        if ("accessConfigs".equals(expression)) {
+            return new Selector(expression, new Function[]{NAT_IP});
+        }
+        final List<Function<Object, Object>> steps = new ArrayList<Function<Object, Object>>();
+        if (!"".equals(expression)) {
+            for (final String part : splitNested(expression)) {
+                addSteps(steps, part);
+            }
+        }
+        return new Selector(expression, steps.toArray(new Function[steps.size()]));
+    }
+
+    /**
+     * The selector as written in the mapping
+     */
+    String expression() {
+        return expression;
+    }
+
+    /**
+     * Return the selected value as a string, or null if there is no value
+     */
+    String apply(final Map<String, ?> instance) {
+        if (0 == steps.length) {
+            return null;
+        }
+        Object value = instance;
+        for (final Function<Object, Object> step : steps) {
+            value = step.apply(value);
+            if (null == value) {
+                return null;
+            }
+        }
+        return asString(value);
+    }
+
+    private static String asString(Object value) {
+        if (value.getClass().isArray()) {
+            value = Array.getLength(value) > 0 ? Array.get(value, 0) : null;
+        } else if (value instanceof Collection) {
+            final Iterator<?> iterator = ((Collection<?>) value).iterator();
+            value = iterator.hasNext() ? iterator.next() : null;
+        }
+        return null != value ? value.toString() : null;
+    }
+
+    /**
+     * Split on '.' outside of [] and ()
+     */
+    private static List<String> splitNested(final String expression) {
+        final List<String> parts = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            final char c = expression.charAt(i);
+            if ('[' == c || '(' == c) {
+                depth++;
+            } else if (']' == c || ')' == c) {
+                depth--;
+            } else if ('.' == c && 0 == depth) {
+                parts.add(expression.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(expression.substring(start));
+        return parts;
+    }
+
+    private static void addSteps(final List<Function<Object, Object>> steps, final String part) {
+        final int bracket = part.indexOf('[');
+        final int paren = part.indexOf('(');
+        if (bracket > -1 && part.endsWith("]") && (paren < 0 || bracket < paren)) {
+            final String name = part.substring(0, bracket);
+            if (!"".equals(name)) {
+                steps.add(property(name));
+            }
+            final String index = part.substring(bracket + 1, part.length() - 1).trim();
+            try {
+                steps.add(index(Integer.parseInt(index)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Index \"" + index + "\" of \"" + part + "\" is not a number");
+            }
+        } else if (paren > -1 && part.endsWith(")")) {
+            final String name = part.substring(0, paren);
+            if (!"".equals(name)) {
+                steps.add(property(name));
+            }
+            steps.add(property(part.substring(paren + 1, part.length() - 1)));
+        } else {
+            steps.add(property(part));
+        }
+    }
+
+    private static Function<Object, Object> property(final String name) {
+        return new Function<Object, Object>() {
+            public Object apply(final Object value) {
+                return value instanceof Map ? ((Map<?, ?>) value).get(name) : null;
+            }
+        };
+    }
+
+    private static Function<Object, Object> index(final int index) {
+        return new Function<Object, Object>() {
+            public Object apply(final Object value) {
+                if (value instanceof List) {
+                    final List<?> list = (List<?>) value;
+                    return index >= 0 && index < list.size() ? list.get(index) : null;
+                }
+                if (null != value && value.getClass().isArray()) {
+                    return index >= 0 && index < Array.getLength(value) ? Array.get(value, index) : null;
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * The networkIP of the last network interface
+     */
+    private static final Function<Object, Object> NETWORK_IP = new Function<Object, Object>() {
+        public Object apply(final Object instance) {
+            Object value = null;
+            for (final Map<?, ?> netint : maps(((Map<?, ?>) instance).get("networkInterfaces"))) {
+                value = netint.get("networkIP");
+            }
+            return value;
+        }
+    };
+
+    /**
+     * The natIP of the last access config of any network interface
+     */
+    private static final Function<Object, Object> NAT_IP = new Function<Object, Object>() {
+        public Object apply(final Object instance) {
+            Object value = null;
+            for (final Map<?, ?> netint : maps(((Map<?, ?>) instance).get("networkInterfaces"))) {
+                for (final Map<?, ?> accconf : maps(netint.get("accessConfigs"))) {
+                    value = accconf.get("natIP");
+                }
+            }
+            return value;
+        }
+    };
+
+    private static List<Map<?, ?>> maps(final Object list) {
+        if (!(list instanceof Collection)) {
+            return Collections.emptyList();
+        }
+        final List<Map<?, ?>> maps = new ArrayList<Map<?, ?>>();
+        for (final Object o : (Collection<?>) list) {
+            if (o instanceof Map) {
+                maps.add((Map<?, ?>) o);
+            }
+        }
+        return maps;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* SharedQuery.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * SharedQuery collapses identical instance listings made by different node sources at the same time into one.
+ * <p/>
+ * A listing is identified by a key made of everything that determines its pages: the credential, the project, the
+ * filter, the field mask, the zones and how the pages are parsed. The listing runs on a thread of its own, and every
+ * source asking for the same key before its first page has been handled subscribes to it: its handler is given the
+ * pages already fetched, then the others as they arrive, on the source's own thread. Every handler maps the pages
+ * itself, so the pages are shared as they are and must not be modified.
+ * <p/>
+ * The listing waits once {@link #MAX_BUFFERED_EVENTS} pages are waiting for its slowest subscriber. A listing of up to
+ * {@link #MAX_RETAINED_INSTANCES} instances keeps all of its pages, so a source can still subscribe to it after its
+ * first pages have been handled, and for a short while after it finished: a source accepting listings completed up to
+ * {@code reuseWindow} ago is handed the pages of the last one instead of listing again. Sources sharing a listing key
+ * are also refreshed at the same time by the {@link RefreshScheduler}, so such sources usually share the listing while
+ * it runs, and the reuse window catches the refreshes started otherwise a little later.
+ * <p/>
+ * A larger listing releases each page as soon as every subscriber has taken it, so it holds a few pages at a time
+ * rather than the whole project; a source asking for its key once a page has been released starts a new listing, which
+ * later sources share instead. A failed listing is forgotten as soon as it finishes, a completed one once it is older
+ * than {@link #MAX_REUSE_WINDOW}. A subscriber which is closed or interrupted only stops handling pages; the listing is
+ * cancelled only when it has no subscriber left.
+ */
+class SharedQuery {
+    static final Logger logger = Logger.getLogger(SharedQuery.class);
+    /** How often a subscriber waiting for the next page checks whether it has been closed */
+    private static final long CLOSED_CHECK_INTERVAL = 1000L;
+    /** Pages and failed scopes a listing publishes ahead of its slowest subscriber before waiting for it */
+    static final int MAX_BUFFERED_EVENTS = 4;
+    /** Instances up to which a listing keeps its pages for later subscribers */
+    static final int MAX_RETAINED_INSTANCES = 20000;
+    /** How long a completed listing is kept at most, whatever the reuse window of its subscribers */
+    static final long MAX_REUSE_WINDOW = 5 * 60 * 1000L;
+
+    static final int LISTING_THREADS = QueryExecutor.MAX_THREADS;
+
+    private static final ExecutorService LISTING_EXECUTOR = QueryExecutor.boundedPool("gcp-nodes-shared-listing",
+                                                                                      LISTING_THREADS);
+
+    private static final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    private SharedQuery() {
+    }
+
+    /**
+     * Lists the instances, handing every page and failed scope to the handler
+     */
+    interface Listing {
+        void list(InstanceToNodeMapper.InstancePageHandler handler) throws IOException;
+    }
+
+    /**
+     * Subscribe to the listing with the key, starting it unless it is already running or completed within the reuse
+     * window, and none of its pages has been released, and hand its pages to the handler until it is finished
+     *
+     * @param owner       the queries of the subscribing source, which stops handling pages once they are closed
+     * @param reuseWindow how long ago a completed listing may have finished to be reused, 0 to only share a running one
+     *
+     * @throws IOException if the listing fails, or the owner is closed or interrupted
+     */
+    static void list(final String key, final Listing listing, final InstanceToNodeMapper.InstancePageHandler handler,
+                     final QueryExecutor owner, final long reuseWindow) throws IOException {
+        forgetExpired();
+        while (true) {
+            final Flight running = flights.get(key);
+            Flight flight = running;
+            Cursor cursor = null != running ? running.subscribe(Math.min(reuseWindow, MAX_REUSE_WINDOW)) : null;
+            if (null == cursor) {
+                //none running or recent enough, or it cannot be replayed from its first page: start another one
+                flight = new Flight(key, listing);
+                cursor = flight.subscribe(0);
+                if (null == running ? null != flights.putIfAbsent(key, flight)
+                                    : !flights.replace(key, running, flight)) {
+                    continue;
+                }
+                LISTING_EXECUTOR.execute(flight.fetch);
+            } else {
+                logger.debug((flight.isDone() ? "Reusing" : "Sharing") + " instance listing " + key.replace('\n', ' '));
+            }
+            try {
+                flight.replay(cursor, handler, owner);
+            } finally {
+                flight.unsubscribe(cursor);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Forget the completed listings older than {@link #MAX_REUSE_WINDOW}, and their pages
+     */
+    private static void forgetExpired() {
+        for (final Flight flight : flights.values()) {
+            if (flight.finishedBefore(System.currentTimeMillis() - MAX_REUSE_WINDOW)) {
+                flights.remove(flight.key, flight);
+            }
+        }
+    }
+
+    /**
+     * The number of subscribers of the running listing with the key
+     */
+    static int subscribers(final String key) {
+        final Flight flight = flights.get(key);
+        return null != flight ? flight.subscribers() : 0;
+    }
+
+    /**
+     * A page of instances, or a scope which could not be listed
+     */
+    private static class Event {
+        final String scope;
+        final List<? extends Map<String, Object>> instances;
+        final String failure;
+
+        Event(final String scope, final List<? extends Map<String, Object>> instances, final String failure) {
+            this.scope = scope;
+            this.instances = instances;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * The position of a subscriber in the events of a listing
+     */
+    private static class Cursor {
+        int next = 0;
+    }
+
+    /**
+     * One run of a listing and its published events, all of them while it retains them, otherwise those its
+     * subscribers have not all taken yet
+     */
+    private static class Flight {
+        final String key;
+        final FutureTask<Void> fetch;
+        /** the events from number {@link #released} on */
+        private final List<Event> events = new ArrayList<Event>();
+        private int released = 0;
+        private final List<Cursor> cursors = new ArrayList<Cursor>();
+        /** true while every event is kept for later subscribers */
+        private boolean retained = true;
+        private int retainedInstances = 0;
+        private boolean done = false;
+        private long finished;
+        private IOException error;
+        private boolean cancelled = false;
+
+        Flight(final String key, final Listing listing) {
+            this.key = key;
+            this.fetch = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() {
+                    IOException error = new IOException("Instance listing ended unexpectedly");
+                    try {
+                        listing.list(new InstanceToNodeMapper.InstancePageHandler() {
+                            public void handlePage(final String scope,
+                                                   final List<? extends Map<String, Object>> instances) {
+                                publish(new Event(scope, instances, null));
+                            }
+
+                            public void scopeFailed(final String scope, final String reason) {
+                                publish(new Event(scope, null, reason));
+                            }
+                        });
+                        error = null;
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (RuntimeException e) {
+                        error = new IOException(e);
+                    } finally {
+                        if (!finish(error)) {
+                            //later listings of the key start over
+                            flights.remove(key, Flight.this);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Add the event, once the slowest subscriber is less than {@link #MAX_BUFFERED_EVENTS} events behind
+         *
+         * @throws CancellationException if the listing is cancelled meanwhile
+         */
+        synchronized void publish(final Event event) {
+            while (pending() >= MAX_BUFFERED_EVENTS && !cancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Interrupted waiting for the subscribers of " + key);
+                }
+            }
+            if (cancelled) {
+                throw new CancellationException("Instance listing " + key + " has been cancelled");
+            }
+            events.add(event);
+            if (retained && null != event.instances) {
+                retainedInstances += event.instances.size();
+                if (retainedInstances > MAX_RETAINED_INSTANCES) {
+                    //too large to be kept, from now on only the events pending for a subscriber are
+                    retained = false;
+                    release();
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * The number of events the slowest subscriber has not taken yet
+         */
+        private int pending() {
+            int taken = released + events.size();
+            for (final Cursor cursor : cursors) {
+                taken = Math.min(taken, cursor.next);
+            }
+            return released + events.size() - taken;
+        }
+
+        /**
+         * @return true if the listing completed and retained its events, so it can be reused
+         */
+        synchronized boolean finish(final IOException error) {
+            this.done = true;
+            this.finished = System.currentTimeMillis();
+            this.error = error;
+            notifyAll();
+            return null == error && retained && !cancelled;
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        synchronized boolean finishedBefore(final long time) {
+            return done && finished < time;
+        }
+
+        /**
+         * @param reuseWindow how long ago the listing may have completed
+         *
+         * @return the position of the new subscriber, or null if the listing has been cancelled, has released events
+         * or completed longer than the reuse window ago, and cannot be subscribed to
+         */
+        synchronized Cursor subscribe(final long reuseWindow) {
+            if (cancelled || released > 0) {
+                return null;
+            }
+            //a zero window must not reuse a listing completed within the same millisecond
+            if (done && (null != error || reuseWindow <= 0 || System.currentTimeMillis() - finished > reuseWindow)) {
+                return null;
+            }
+            final Cursor cursor = new Cursor();
+            cursors.add(cursor);
+            return cursor;
+        }
+
+        synchronized int subscribers() {
+            return cursors.size();
+        }
+
+        /**
+         * Release the events the subscriber had not taken yet, and cancel the listing if it is still running and no
+         * subscriber is left
+         */
+        void unsubscribe(final Cursor cursor) {
+            synchronized (this) {
+                cursors.remove(cursor);
+                if (!cursors.isEmpty() || done) {
+                    release();
+                    return;
+                }
+                cancelled = true;
+                events.clear();
+                notifyAll();
+            }
+            flights.remove(key, this);
+            fetch.cancel(true);
+        }
+
+        /**
+         * Hand every event to the handler as it is published, until the listing is finished
+         */
+        void replay(final Cursor cursor, final InstanceToNodeMapper.InstancePageHandler handler,
+                    final QueryExecutor owner) throws IOException {
+            while (true) {
+                final Event event;
+                synchronized (this) {
+                    while (cursor.next - released >= events.size() && !done) {
+                        checkOpen(owner);
+                        try {
+                            wait(CLOSED_CHECK_INTERVAL);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted waiting for a shared instance listing");
+                        }
+                    }
+                    if (cursor.next - released >= events.size()) {
+                        if (null != error) {
+                            throw new IOException("Instance listing failed: " + error.getMessage(), error);
+                        }
+                        return;
+                    }
+                    event = events.get(cursor.next++ - released);
+                    release();
+                }
+                checkOpen(owner);
+                if (null != event.failure) {
+                    handler.scopeFailed(event.scope, event.failure);
+                } else {
+                    handler.handlePage(event.scope, event.instances);
+                }
+            }
+        }
+
+        /**
+         * Drop the events every subscriber has taken unless they are retained, and wake up the listing if it was
+         * waiting for them
+         */
+        private void release() {
+            notifyAll();
+            if (retained) {
+                return;
+            }
+            int taken = Integer.MAX_VALUE;
+            for (final Cursor cursor : cursors) {
+                taken = Math.min(taken, cursor.next);
+            }
+            if (cursors.isEmpty() || taken <= released) {
+                return;
+            }
+            events.subList(0, taken - released).clear();
+            released = taken;
+        }
+
+        private static void checkOpen(final QueryExecutor owner) throws InterruptedIOException {
+            if (owner.isClosed()) {
+                throw new InterruptedIOException("The query has been closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* CircuitBreakerTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Opening after consecutive failures, probing once the interval has passed, and closing on success
+ */
+public class CircuitBreakerTest {
+    private static final long PROBE_INTERVAL = 200;
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(3, PROBE_INTERVAL);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        //a success resets the count
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.getRetryDelay() > 0 && breaker.getRetryDelay() <= PROBE_INTERVAL);
+    }
+
+    @Test
+    public void successfulProbeCloses() throws Exception {
+        final CircuitBreaker breaker = open();
+        Thread.sleep(PROBE_INTERVAL + 50);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        //only one probe at a time
+        assertFalse(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailures());
+        assertTrue(breaker.allowRequest());
+        assertEquals(0, breaker.getRetryDelay());
+    }
+
+    @Test
+    public void failedProbeOpensForAnotherInterval() throws Exception {
+        final CircuitBreaker breaker = open();
+        Thread.sleep(PROBE_INTERVAL + 50);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(PROBE_INTERVAL + 50);
+        assertTrue(breaker.allowRequest());
+    }
+
+    private static CircuitBreaker open() {
+        final CircuitBreaker breaker = new CircuitBreaker(3, PROBE_INTERVAL);
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure();
+        }
+        assertFalse(breaker.allowRequest());
+        return breaker;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* ComputeRequestInitializerTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.compute.Compute;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Which Compute API responses are retried, served by a mock transport
+ */
+public class ComputeRequestInitializerTest {
+    private static final String RATE_LIMIT_ERROR = "{\"error\": {\"code\": 403, \"message\": \"Rate Limit Exceeded\", "
+                                                   + "\"errors\": [{\"reason\": \"rateLimitExceeded\"}]}}";
+    private static final String FORBIDDEN_ERROR = "{\"error\": {\"code\": 403, \"message\": \"Forbidden\", "
+                                                  + "\"errors\": [{\"reason\": \"forbidden\"}]}}";
+
+    private static MockLowLevelHttpResponse response(final int status, final String retryAfter,
+                                                     final String content) {
+        final MockLowLevelHttpResponse response = new MockLowLevelHttpResponse().setStatusCode(status)
+                .setContentType("application/json").setContent(content);
+        if (null != retryAfter) {
+            response.addHeader("Retry-After", retryAfter);
+        }
+        return response;
+    }
+
+    /**
+     * A client whose requests are answered with the responses in turn
+     */
+    private static class Server {
+        final List<MockLowLevelHttpResponse> responses;
+        int requests = 0;
+        final Compute compute;
+
+        Server(final String credentialKey, final MockLowLevelHttpResponse... responses) {
+            this.responses = new ArrayList<MockLowLevelHttpResponse>(Arrays.asList(responses));
+            compute = new Compute.Builder(new MockHttpTransport() {
+                public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                    final MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url);
+                    request.setResponse(Server.this.responses.get(requests++));
+                    return request;
+                }
+            }, ComputeClients.JSON_FACTORY, new ComputeRequestInitializer(credentialKey, null))
+                    .setApplicationName(ComputeClients.APPLICATION_NAME).build();
+        }
+
+        void get() throws Exception {
+            compute.instances().get("proj-a", "us-central1-a", "web-1").execute();
+        }
+    }
+
+    @Test
+    public void rateLimitedResponsesAreRetriedAfterTheirDelay() throws Exception {
+        final Server server = new Server("retry-test-429", response(429, "1", "{}"),
+                                         response(403, "0", RATE_LIMIT_ERROR), response(200, null, "{}"));
+        final long start = System.currentTimeMillis();
+        server.get();
+        assertTrue(System.currentTimeMillis() - start >= 900);
+        assertEquals(3, server.requests);
+        final RateLimiter limiter = RateLimiter.forKey("retry-test-429", "proj-a");
+        assertEquals(2, limiter.getRateLimitedCount());
+        assertEquals(2, limiter.getRetriedCount());
+    }
+
+    @Test
+    public void serverErrorsAreRetried() throws Exception {
+        final Server server = new Server("retry-test-5xx", response(503, "0", "{}"), response(500, "0", "{}"),
+                                         response(200, null, "{}"));
+        server.get();
+        assertEquals(3, server.requests);
+        final RateLimiter limiter = RateLimiter.forKey("retry-test-5xx", "proj-a");
+        assertEquals(0, limiter.getRateLimitedCount());
+        assertEquals(2, limiter.getRetriedCount());
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws Exception {
+        for (final MockLowLevelHttpResponse error : new MockLowLevelHttpResponse[]{
+                response(403, "0", FORBIDDEN_ERROR), response(404, "0", "{}"), response(400, "0", "{}")}) {
+            final Server server = new Server("retry-test-4xx", error, response(200, null, "{}"));
+            try {
+                server.get();
+                fail("status " + error.getStatusCode() + " should not be retried");
+            } catch (GoogleJsonResponseException e) {
+                assertEquals(error.getStatusCode(), e.getStatusCode());
+            }
+            assertEquals(1, server.requests);
+        }
+        assertEquals(0, RateLimiter.forKey("retry-test-4xx", "proj-a").getRetriedCount());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* GCPResourceModelSourceFactoryTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sources discarded by Rundeck must not leave threads or memory behind. The sources are given a credential file which
+ * does not exist, so their queries fail before sending any request to the Compute API.
+ */
+public class GCPResourceModelSourceFactoryTest {
+    private static final int SOURCES = 1000;
+    private static final long MAX_HEAP_GROWTH = 16 * 1024 * 1024L;
+
+    private static Properties configuration(final String rundeckProject) {
+        final Properties properties = new Properties();
+        //added by Rundeck to the configuration of every source
+        properties.setProperty("project", rundeckProject);
+        properties.setProperty(GCPResourceModelSourceFactory.PROJECT_ID, "test-project");
+        properties.setProperty(GCPResourceModelSourceFactory.CREDENTIAL_FILE, "/nonexistent/gcp-nodes-test-key.json");
+        properties.setProperty(GCPResourceModelSourceFactory.PERSIST_SNAPSHOT, "false");
+        return properties;
+    }
+
+    @Test
+    public void discardedSourcesLeaveNoThreadsOrHeapBehind() throws Exception {
+        final GCPResourceModelSourceFactory factory = new GCPResourceModelSourceFactory(null);
+        final Properties configuration = configuration("test");
+        //load the classes and start the shared threads before measuring
+        for (int i = 0; i < 50; i++) {
+            factory.createResourceModelSource(configuration);
+        }
+        Thread.sleep(2000);
+        final int threadsBefore = Thread.activeCount();
+        final long heapBefore = usedHeap();
+
+        for (int i = 0; i < SOURCES; i++) {
+            factory.createResourceModelSource(configuration);
+        }
+        Thread.sleep(2000);
+        final int threadsAfter = Thread.activeCount();
+        final long heapAfter = usedHeap();
+
+        //the shared pools may grow up to their bounds, but not by a thread per source
+        final int sharedThreads = QueryExecutor.MAX_THREADS + SharedQuery.LISTING_THREADS
+                                  + InstanceToNodeMapper.PAGE_FETCH_THREADS + 2;
+        assertTrue("threads before: " + threadsBefore + ", after " + SOURCES + " sources: " + threadsAfter,
+                   threadsAfter <= threadsBefore + sharedThreads);
+        assertTrue("plugin threads after " + SOURCES + " sources: " + pluginThreads(),
+                   pluginThreads() <= sharedThreads);
+        assertTrue("heap grew by " + (heapAfter - heapBefore) / 1024 + "KB after " + SOURCES + " sources",
+                   heapAfter - heapBefore < MAX_HEAP_GROWTH);
+    }
+
+    /**
+     * Serve the nodes rather than query the projects of the source
+     */
+    private static void serve(final GCPResourceModelSource source, final String nodename) {
+        final NodeSetImpl nodes = new NodeSetImpl();
+        final NodeEntryImpl node = new NodeEntryImpl(nodename, nodename);
+        nodes.putNode(node);
+        source.projects.close();
+        source.projects = new MultiProjectQuery(Collections.<InstanceToNodeMapper>emptyList(), 1) {
+            CompletableFuture<INodeSet> performQueryAsync() {
+                return CompletableFuture.completedFuture((INodeSet) nodes);
+            }
+        };
+        source.queryAsync = false;
+        source.refreshInterval = -1;
+    }
+
+    @Test
+    public void siblingSourcesOfAProjectKeepServingNodes() throws Exception {
+        final GCPResourceModelSourceFactory factory = new GCPResourceModelSourceFactory(null);
+        //no background refresh, which would query the projects before they are replaced
+        final Properties configuration = configuration("siblings");
+        configuration.setProperty(GCPResourceModelSourceFactory.BACKGROUND_REFRESH, "false");
+        final GCPResourceModelSource first = (GCPResourceModelSource) factory.createResourceModelSource(
+                configuration);
+        serve(first, "first-node");
+        //the same GCP project with another filter, and the same configuration again
+        final Properties filtered = (Properties) configuration.clone();
+        filtered.setProperty(GCPResourceModelSourceFactory.FILTER_PARAMS, "labels.env=prod");
+        final GCPResourceModelSource second = (GCPResourceModelSource) factory.createResourceModelSource(filtered);
+        serve(second, "second-node");
+        final GCPResourceModelSource third = (GCPResourceModelSource) factory.createResourceModelSource(
+                configuration);
+        serve(third, "third-node");
+        try {
+            assertEquals(Collections.singleton("first-node"), new HashSet<String>(first.getNodes().getNodeNames()));
+            assertEquals(Collections.singleton("second-node"), new HashSet<String>(second.getNodes().getNodeNames()));
+            assertEquals(Collections.singleton("third-node"), new HashSet<String>(third.getNodes().getNodeNames()));
+        } finally {
+            first.close();
+            second.close();
+            third.close();
+        }
+    }
+
+    @Test
+    public void discardedSourceStopsRefreshingOnceCollected() throws Exception {
+        final GCPResourceModelSourceFactory factory = new GCPResourceModelSourceFactory(null);
+        final Properties configuration = configuration("discarded");
+        configuration.setProperty(GCPResourceModelSourceFactory.REFRESH_INTERVAL, "60");
+        GCPResourceModelSource source = (GCPResourceModelSource) factory.createResourceModelSource(configuration);
+        assertTrue(RefreshScheduler.isRegistered(source));
+        final WeakReference<GCPResourceModelSource> discarded = new WeakReference<GCPResourceModelSource>(source);
+        //replaced by Rundeck without closing it: only the refresh scheduler's weak reference is left
+        source = (GCPResourceModelSource) factory.createResourceModelSource(configuration);
+        for (int i = 0; i < 50 && null != discarded.get(); i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertNull("the discarded source is still referenced", discarded.get());
+        assertTrue(RefreshScheduler.isRegistered(source));
+        source.close();
+    }
+
+    private static int pluginThreads() {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("gcp-nodes-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(200);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
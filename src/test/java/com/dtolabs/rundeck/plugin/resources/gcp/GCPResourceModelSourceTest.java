@@ -0,0 +1,150 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* GCPResourceModelSourceTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import com.dtolabs.rundeck.core.resources.ResourceModelSourceException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Serving of the nodes of a source whose query is replaced by the nodes and stale time given by the test
+ */
+public class GCPResourceModelSourceTest {
+    private static final long MAX_STALENESS = 60 * 1000L;
+
+    private File snapshotDir;
+    private GCPResourceModelSource source;
+    private INodeSet queried;
+    private long staleSince;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotDir = Files.createTempDirectory("gcp-nodes-test").toFile();
+        final Properties configuration = new Properties();
+        configuration.setProperty(GCPResourceModelSourceFactory.PROJECT_ID, "test-project");
+        configuration.setProperty(GCPResourceModelSourceFactory.CREDENTIAL_FILE,
+                                  "/nonexistent/gcp-nodes-test-key.json");
+        configuration.setProperty(GCPResourceModelSourceFactory.BACKGROUND_REFRESH, "false");
+        configuration.setProperty(GCPResourceModelSourceFactory.SNAPSHOT_DIR, snapshotDir.getPath());
+        source = new GCPResourceModelSource(configuration);
+        source.projects.close();
+        source.projects = new MultiProjectQuery(Collections.<InstanceToNodeMapper>emptyList(), 1) {
+            CompletableFuture<INodeSet> performQueryAsync() {
+                return CompletableFuture.completedFuture(queried);
+            }
+
+            long getStaleSince() {
+                return staleSince;
+            }
+        };
+        source.queryAsync = false;
+        source.refreshInterval = -1;
+        source.maxStaleness = MAX_STALENESS;
+    }
+
+    @After
+    public void tearDown() {
+        source.close();
+        for (final File file : snapshotDir.listFiles()) {
+            file.delete();
+        }
+        snapshotDir.delete();
+    }
+
+    private static INodeSet nodes(final String... names) {
+        final NodeSetImpl nodes = new NodeSetImpl();
+        for (final String name : names) {
+            final NodeEntryImpl node = new NodeEntryImpl(name);
+            node.setHostname(name);
+            nodes.putNode(node);
+        }
+        return nodes;
+    }
+
+    @Test
+    public void freshNodesAreStored() throws Exception {
+        queried = nodes("a", "b");
+        assertEquals(queried.getNodeNames(), source.getNodes().getNodeNames());
+        assertEquals(0, source.getStalenessMillis());
+        assertEquals(queried.getNodeNames(), source.snapshotStore.load().getNodeNames());
+    }
+
+    @Test
+    public void unchangedNodesAreNotWrittenAgain() throws Exception {
+        queried = nodes("a", "b");
+        source.getNodes();
+        final File file = source.snapshotStore.getFile();
+        assertTrue(file.getName(), file.getName().matches("gcp-nodes-test-project-[0-9a-f]{64}\\.snapshot"));
+        assertTrue(file.setLastModified(1000));
+        queried = nodes("b", "a");
+        source.getNodes();
+        assertEquals(1000, file.lastModified());
+        queried = nodes("a", "c");
+        source.getNodes();
+        assertNotEquals(1000, file.lastModified());
+        assertEquals(queried.getNodeNames(), source.snapshotStore.load().getNodeNames());
+        //after a restart, the nodes read from the file are not written again either
+        assertTrue(file.setLastModified(2000));
+        final NodeSnapshotStore restarted = new NodeSnapshotStore(file);
+        restarted.load();
+        restarted.save(nodes("c", "a"));
+        assertEquals(2000, file.lastModified());
+    }
+
+    @Test
+    public void nodesWithAStaleProjectAreServedButNotStored() throws Exception {
+        queried = nodes("a");
+        source.getNodes();
+        queried = nodes("a", "stale");
+        staleSince = System.currentTimeMillis() - MAX_STALENESS / 2;
+        assertEquals(queried.getNodeNames(), source.getNodes().getNodeNames());
+        assertTrue(source.getStalenessMillis() >= MAX_STALENESS / 2);
+        assertEquals(nodes("a").getNodeNames(), source.snapshotStore.load().getNodeNames());
+    }
+
+    @Test
+    public void nodesWithAProjectStalePastTheMaxStalenessAreNotServed() throws Exception {
+        queried = nodes("a");
+        source.getNodes();
+        staleSince = System.currentTimeMillis() - 2 * MAX_STALENESS;
+        try {
+            source.getNodes();
+            fail("the nodes of a project are stale for longer than the max staleness");
+        } catch (ResourceModelSourceException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("could not be refreshed"));
+        }
+        //served again once every project is refreshed
+        staleSince = 0;
+        assertEquals(queried.getNodeNames(), source.getNodes().getNodeNames());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceFilterTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The filter params and running state option evaluated against single instances
+ */
+public class InstanceFilterTest {
+
+    private static Map<String, Object> instance(final String status, final String env) {
+        final Map<String, Object> instance = new HashMap<String, Object>();
+        instance.put("name", "web-1");
+        instance.put("status", status);
+        if (null != env) {
+            instance.put("labels", Collections.singletonMap("env", env));
+        }
+        return instance;
+    }
+
+    @Test
+    public void everyConditionMustMatch() {
+        final InstanceFilter filter = InstanceFilter.compile(Arrays.asList("labels.env = \"prod\"", " "), true);
+        assertNotNull(filter);
+        assertEquals(Arrays.asList("status", "labels.env"), filter.fields());
+        assertTrue(filter.matches(instance("RUNNING", "prod")));
+        assertFalse(filter.matches(instance("TERMINATED", "prod")));
+        assertFalse(filter.matches(instance("RUNNING", "dev")));
+        //a missing field does not match
+        assertFalse(filter.matches(instance("RUNNING", null)));
+    }
+
+    @Test
+    public void noConditionMatchesEveryInstance() {
+        final InstanceFilter filter = InstanceFilter.compile(null, false);
+        assertTrue(filter.fields().isEmpty());
+        assertTrue(filter.matches(instance("TERMINATED", null)));
+    }
+
+    @Test
+    public void rawExpressionsAreNotCompiled() {
+        assertNull(InstanceFilter.compile(Arrays.asList("labels.env=prod", "name != test-vm"), false));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceOperationsTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.compute.Compute;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The instances changed since a time, from pages of operations served by a mock transport
+ */
+public class InstanceOperationsTest {
+    private static final long SINCE = OffsetDateTime.parse("2018-07-11T12:00:00Z").toInstant().toEpochMilli();
+    private static final long NOW = OffsetDateTime.parse("2018-07-11T12:20:00Z").toInstant().toEpochMilli();
+    private static final String ZONE_LINK = "https://www.googleapis.com/compute/v1/projects/proj-a/zones/us-central1-a";
+
+    /**
+     * operation times in the offset of the API's time zone, 12:00 UTC is 05:00; each page is sorted only within its
+     * scope, so old operations come before recent ones
+     */
+    private static final String[] PAGES = {
+            "{\"nextPageToken\": \"page-2\", \"items\": {\"zones/us-central1-a\": {\"operations\": ["
+            + operation("running", "RUNNING", "2018-07-11T05:01:00.000-07:00", null) + ","
+            + operation("ended-before", "DONE", "2018-07-11T04:00:00.000-07:00", "2018-07-11T04:56:00.000-07:00")
+            + "," + "{\"targetLink\": \"" + ZONE_LINK + "/disks/disk-1\", \"status\": \"RUNNING\"}]}, "
+            + "\"zones/us-central1-b\": {\"operations\": ["
+            + operation("long-running", "RUNNING", "2018-07-08T04:00:00.000-07:00", null) + "]}}}",
+            "{\"nextPageToken\": \"page-3\", \"items\": {\"zones/us-central1-a\": {\"operations\": ["
+            + operation("ended-after", "DONE", "2018-07-11T04:59:00.000-07:00", "2018-07-11T05:00:01.000-07:00")
+            + "]}}}",
+            "{\"items\": {\"zones/us-central1-c\": {\"operations\": ["
+            + operation("started-after", "DONE", "2018-07-11T05:10:00.000-07:00", "2018-07-11T05:11:00.000-07:00")
+            + "]}}}",
+    };
+
+    private static String operation(final String instance, final String status, final String insertTime,
+                                     final String endTime) {
+        return "{\"targetLink\": \"" + ZONE_LINK + "/instances/" + instance + "\", \"status\": \"" + status
+               + "\", \"insertTime\": \"" + insertTime + "\""
+               + (null != endTime ? ", \"endTime\": \"" + endTime + "\"" : "") + "}";
+    }
+
+    @Test
+    public void changedInstancesAreListedFromEveryPage() throws Exception {
+        final List<GenericUrl> requests = new ArrayList<GenericUrl>();
+        final Compute compute = new Compute.Builder(new MockHttpTransport() {
+            public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                requests.add(new GenericUrl(url));
+                final MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url);
+                request.setResponse(new MockLowLevelHttpResponse().setContentType("application/json")
+                                                                  .setContent(PAGES[requests.size() - 1]));
+                return request;
+            }
+        }, ComputeClients.JSON_FACTORY, null).setApplicationName(ComputeClients.APPLICATION_NAME).build();
+
+        //the operations ended within the filter margin but before the time are not changes
+        assertEquals(Arrays.asList("us-central1-a/running", "us-central1-a/long-running", "us-central1-a/ended-after",
+                                   "us-central1-a/started-after"),
+                     new ArrayList<String>(InstanceOperations.changedSince(compute, "proj-a", SINCE, NOW)));
+        assertEquals(3, requests.size());
+        assertEquals("(status != \"DONE\") OR (endTime > \"2018-07-11T04:55:00.000-07:00\")",
+                     requests.get(0).getFirst("filter"));
+        assertNull(requests.get(0).getFirst("pageToken"));
+        assertEquals("page-2", requests.get(1).getFirst("pageToken"));
+        assertEquals("page-3", requests.get(2).getFirst("pageToken"));
+    }
+
+    @Test
+    public void filterTimeIsInTheTimeZoneOfTheApi() {
+        //standard time
+        assertEquals("(status != \"DONE\") OR (endTime > \"2018-01-11T04:00:00.000-08:00\")",
+                     InstanceOperations.filter(time("2018-01-11T12:00:00Z"), time("2018-01-11T12:10:00Z")));
+        //clocks turned forward at 10:00 UTC, from 02:00 to 03:00 local time
+        assertEquals("(status != \"DONE\") OR (endTime > \"2018-03-11T01:55:00.000-08:00\")",
+                     InstanceOperations.filter(time("2018-03-11T09:55:00Z"), time("2018-03-11T10:05:00Z")));
+        //clocks turned back at 09:00 UTC, from 02:00 to 01:00 local time: 01:30 PDT is followed by 01:10 PST
+        assertEquals("(status != \"DONE\") OR (endTime > \"2018-11-04T00:30:00.000-07:00\")",
+                     InstanceOperations.filter(time("2018-11-04T08:30:00Z"), time("2018-11-04T09:15:00Z")));
+        //not turned back yet
+        assertEquals("(status != \"DONE\") OR (endTime > \"2018-11-04T01:30:00.000-07:00\")",
+                     InstanceOperations.filter(time("2018-11-04T08:30:00Z"), time("2018-11-04T08:45:00Z")));
+    }
+
+    private static long time(final String time) {
+        return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+    }
+
+    @Test
+    public void instanceKeyOfTargetLinks() {
+        assertEquals("us-central1-a/web-1", InstanceOperations.instanceKey(ZONE_LINK + "/instances/web-1"));
+        assertEquals("us-central1-a/web-1", InstanceOperations.instanceKey("zones/us-central1-a/instances/web-1"));
+        assertNull(InstanceOperations.instanceKey(ZONE_LINK + "/disks/disk-1"));
+        assertNull(InstanceOperations.instanceKey(ZONE_LINK + "/instances"));
+        assertNull(InstanceOperations.instanceKey(
+                "https://www.googleapis.com/compute/v1/projects/proj-a/global/instanceTemplates/t"));
+        assertNull(InstanceOperations.instanceKey(null));
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* InstanceToNodeMapperTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.compute.Compute;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The filter expression sent to the Compute API, and queries of mappers whose Compute client is served by a mock
+ * transport
+ */
+public class InstanceToNodeMapperTest {
+    private static final String MAPPING = "nodename.selector=name\nhostname.selector=name\n";
+    private static final String BOUNDARY = "batch_test";
+
+    private static String instance(final String id, final String name, final String env) {
+        return "{\"id\": \"" + id + "\", \"name\": \"" + name + "\", \"status\": \"RUNNING\", "
+               + "\"fingerprint\": \"f" + id + "\", \"labels\": {\"env\": \"" + env + "\"}}";
+    }
+
+    private static String part(final String status, final String content) {
+        return "--" + BOUNDARY + "\r\nContent-Type: application/http\r\n\r\nHTTP/1.1 " + status
+               + "\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n" + content + "\r\n";
+    }
+
+    /**
+     * A mapper of the project whose requests are answered with the responses in turn: aggregated lists and batches
+     */
+    private static class MockMapper extends InstanceToNodeMapper {
+        final List<String> urls = new ArrayList<String>();
+        final List<String> threads = new ArrayList<String>();
+        final List<String> responses;
+        final Compute compute;
+
+        MockMapper(final String name, final String... responses) throws IOException {
+            this(name, mapping(MAPPING), responses);
+        }
+
+        MockMapper(final String name, final Properties mapping, final String... responses) {
+            super("/nonexistent/" + name + ".json", mapping);
+            setProjectId("proj-a");
+            this.responses = new ArrayList<String>(Arrays.asList(responses));
+            compute = new Compute.Builder(new MockHttpTransport() {
+                public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                    urls.add(url);
+                    threads.add(Thread.currentThread().getName());
+                    final String content = MockMapper.this.responses.remove(0);
+                    final MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url);
+                    request.setResponse(new MockLowLevelHttpResponse().setContent(content).setContentType(
+                            content.startsWith("--") ? "multipart/mixed; boundary=" + BOUNDARY
+                                                     : "application/json"));
+                    return request;
+                }
+            }, ComputeClients.JSON_FACTORY, null).setApplicationName(ComputeClients.APPLICATION_NAME).build();
+        }
+
+        Compute compute() {
+            return compute;
+        }
+    }
+
+    private static Properties mapping(final String definition) throws IOException {
+        final Properties mapping = new Properties();
+        mapping.load(new StringReader(definition));
+        return mapping;
+    }
+
+    private static Set<String> names(final INodeSet nodes) {
+        return new TreeSet<String>(nodes.getNodeNames());
+    }
+
+    @Test
+    public void instancePagesAreMergedInOrder() throws Exception {
+        assertPagesMerged("pages-typed", false);
+    }
+
+    @Test
+    public void streamedInstancePagesAreMergedInOrder() throws Exception {
+        assertPagesMerged("pages-streamed", true);
+    }
+
+    /**
+     * List two pages, web-1 being on both as if it had moved zones while listing: the node of the later page wins
+     */
+    private static void assertPagesMerged(final String name, final boolean streamingParse) throws Exception {
+        final Properties mapping = mapping("nodename.selector=name\nhostname.selector=name\nzone.selector=zone\n");
+        final MockMapper mapper = new MockMapper(
+                name, mapping,
+                "{\"nextPageToken\": \"page-2\", \"items\": {\"zones/us-central1-a\": {\"instances\": ["
+                + "{\"id\": \"1\", \"name\": \"web-1\", \"zone\": \"us-central1-a\"}, "
+                + "{\"id\": \"2\", \"name\": \"web-2\", \"zone\": \"us-central1-a\"}]}}}",
+                "{\"items\": {\"zones/us-central1-b\": {\"instances\": ["
+                + "{\"id\": \"3\", \"name\": \"db-1\", \"zone\": \"us-central1-b\"}, "
+                + "{\"id\": \"4\", \"name\": \"web-1\", \"zone\": \"us-central1-b\"}]}}}");
+        mapper.setStreamingParse(streamingParse);
+        try {
+            final INodeSet nodes = mapper.performQuery();
+            assertEquals(new TreeSet<String>(Arrays.asList("web-1", "web-2", "db-1")), names(nodes));
+            assertEquals("us-central1-b", nodes.getNode("web-1").getAttributes().get("zone"));
+            assertEquals("us-central1-a", nodes.getNode("web-2").getAttributes().get("zone"));
+
+            assertEquals(2, mapper.urls.size());
+            assertNull(new GenericUrl(mapper.urls.get(0)).getFirst("pageToken"));
+            assertEquals("page-2", new GenericUrl(mapper.urls.get(1)).getFirst("pageToken"));
+            assertEquals(new GenericUrl(mapper.urls.get(0)).getFirst("filter"),
+                         new GenericUrl(mapper.urls.get(1)).getFirst("filter"));
+            //both pages are fetched ahead of the mapping, on the page fetch threads
+            for (final String thread : mapper.threads) {
+                assertTrue(thread, thread.startsWith("gcp-nodes-page-fetch"));
+            }
+        } finally {
+            mapper.close();
+        }
+    }
+
+    @Test
+    public void refreshedInstancesAreMergedIntoTheirZones() throws Exception {
+        final MockMapper mapper = new MockMapper(
+                "refresh-merge",
+                "{\"items\": {\"zones/us-central1-a\": {\"instances\": [" + instance("1", "web-1", "prod") + ", "
+                + instance("2", "web-2", "prod") + "]}, \"zones/us-central1-b\": {\"instances\": ["
+                + instance("3", "db-1", "prod") + "]}}}",
+                part("200 OK", instance("1", "web-1", "dev"))
+                + part("200 OK", instance("4", "new-1", "prod"))
+                + part("404 Not Found", "{\"error\": {\"code\": 404, \"message\": \"not found\"}}")
+                + "--" + BOUNDARY + "--\r\n");
+        mapper.setFilterParams(new ArrayList<String>(Collections.singletonList("labels.env=prod")));
+        mapper.setRunningStateOnly(false);
+        try {
+            assertEquals(new TreeSet<String>(Arrays.asList("web-1", "web-2", "db-1")), names(mapper.performQuery()));
+
+            //web-1 no longer matches the filter, web-2 is gone, new-1 was created in the other zone
+            final INodeSet nodes = mapper.refreshInstances(Arrays.asList(
+                    "us-central1-a/web-1",
+                    "https://www.googleapis.com/compute/v1/projects/proj-a/zones/us-central1-b/instances/new-1",
+                    "us-central1-a/web-2", "us-central1-a/web-1"));
+            assertEquals(new TreeSet<String>(Arrays.asList("db-1", "new-1")), names(nodes));
+            assertEquals(2, mapper.urls.size());
+            assertTrue(mapper.urls.get(1), mapper.urls.get(1).contains("/batch/compute/"));
+        } finally {
+            mapper.close();
+        }
+    }
+
+    @Test
+    public void unreachableZoneKeepsItsPreviousNodesAsStale() throws Exception {
+        final String listing = "{\"items\": {\"zones/us-central1-a\": {\"instances\": ["
+                               + instance("1", "web-1", "prod") + "]}, \"zones/us-central1-b\": {\"instances\": ["
+                               + instance("3", "db-1", "prod") + "]}}}";
+        final String unreachable = "{\"items\": {\"zones/us-central1-a\": {\"instances\": ["
+                                   + instance("2", "web-2", "prod") + "]}, \"zones/us-central1-b\": {\"warning\": "
+                                   + "{\"code\": \"UNREACHABLE\", \"message\": \"zone unavailable\"}}}}";
+        final MockMapper mapper = new MockMapper("zone-stale", listing, unreachable, unreachable);
+        try {
+            final INodeSet first = mapper.performQuery();
+            assertNull(first.getNode("db-1").getAttributes().get("gcpStaleSince"));
+            assertEquals(0, mapper.getScopeStalenessMillis());
+
+            assertEquals(mapper.urls.toString(), 1, mapper.urls.size());
+            //web-1 is gone from the listed zone, db-1 is kept from the unreachable zone
+            final INodeSet second = mapper.performQuery();
+            assertEquals(new TreeSet<String>(Arrays.asList("web-2", "db-1")), names(second));
+            assertNull(second.getNode("web-2").getAttributes().get("gcpStaleSince"));
+            assertNotNull(second.getNode("db-1").getAttributes().get("gcpStaleSince"));
+
+            //past the max staleness the nodes of the zone are dropped
+            Thread.sleep(20);
+            mapper.setMaxScopeStaleness(10);
+            assertEquals(Collections.singleton("web-2"), names(mapper.performQuery()));
+            assertEquals(0, mapper.getScopeStalenessMillis());
+        } finally {
+            mapper.close();
+        }
+    }
+
+    @Test
+    public void parallelMappingKeepsTheInstanceOrder() throws Exception {
+        //500 instances named after 100 roles, so the last instance of each role must win the nodename
+        final StringBuilder listing = new StringBuilder("{\"items\": {\"zones/us-central1-a\": {\"instances\": [");
+        for (int i = 0; i < 500; i++) {
+            listing.append(i > 0 ? ", " : "").append("{\"id\": \"").append(i).append("\", \"name\": \"web-")
+                   .append(i).append("\", \"status\": \"RUNNING\", \"labels\": {\"role\": \"r")
+                   .append(i % 100).append("\"}}");
+        }
+        listing.append("]}}}");
+        final Properties mapping = mapping("nodename.selector=labels.role\nhostname.selector=name\n");
+        final MockMapper sequential = new MockMapper("mapping-sequential", mapping, listing.toString());
+        final MockMapper parallel = new MockMapper("mapping-parallel", mapping, listing.toString());
+        parallel.setMappingParallelism(4);
+        try {
+            final INodeSet expected = sequential.performQuery();
+            final INodeSet nodes = parallel.performQuery();
+            assertEquals(100, nodes.getNodes().size());
+            assertEquals(names(expected), names(nodes));
+            for (int role = 0; role < 100; role++) {
+                assertEquals("web-" + (400 + role), nodes.getNode("r" + role).getHostname());
+                assertEquals(expected.getNode("r" + role).getAttributes(), nodes.getNode("r" + role).getAttributes());
+            }
+        } finally {
+            sequential.close();
+            parallel.close();
+        }
+    }
+
+    @Test
+    public void refreshBeforeTheFirstQueryFails() throws Exception {
+        final MockMapper mapper = new MockMapper("refresh-first");
+        try {
+            mapper.refreshInstances(Collections.singletonList("us-central1-a/web-1"));
+            fail("nothing to merge the instance into yet");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("has not been queried yet"));
+        } finally {
+            mapper.close();
+        }
+        assertTrue(mapper.urls.isEmpty());
+    }
+
+    @Test
+    public void filterParamsAndRunningStateAreCombined() {
+        assertNull(InstanceToNodeMapper.buildFilter(null, false));
+        assertNull(InstanceToNodeMapper.buildFilter(Arrays.asList("", "  "), false));
+        assertEquals("(status = RUNNING)", InstanceToNodeMapper.buildFilter(null, true));
+        assertEquals("(status = RUNNING) AND (labels.env = \"prod\") AND (name = \"web-1\")",
+                     InstanceToNodeMapper.buildFilter(Arrays.asList("labels.env=prod", " name = \"web-1\" "), true));
+        //values are quoted, their own quotes escaped
+        assertEquals("(description = \"say \\\"hi\\\"\")",
+                     InstanceToNodeMapper.buildFilter(Collections.singletonList("description=say \"hi\""), false));
+        //expressions are passed through as written
+        assertEquals("(name != test-vm) AND (zone = \"us-central1-a\")",
+                     InstanceToNodeMapper.buildFilter(Arrays.asList("name != test-vm", "zone=us-central1-a"), false));
+    }
+
+    @Test
+    public void onlyEnclosingQuotesAreRemoved() {
+        assertEquals("prod", InstanceToNodeMapper.unquote("\"prod\""));
+        assertEquals("prod", InstanceToNodeMapper.unquote("prod"));
+        assertEquals("\"prod", InstanceToNodeMapper.unquote("\"prod"));
+        assertEquals("\"", InstanceToNodeMapper.unquote("\""));
+        assertEquals("", InstanceToNodeMapper.unquote("\"\""));
+        assertEquals("a\"b", InstanceToNodeMapper.unquote("a\"b"));
+    }
+
+    @Test
+    public void queryWithoutCredentialFailsBeforeAnyRequest() throws Exception {
+        final InstanceToNodeMapper mapper = new InstanceToNodeMapper("/nonexistent/gcp-nodes-test-key.json",
+                                                                     new Properties());
+        mapper.setProjectId("proj-a");
+        try {
+            mapper.performQuery();
+            fail("the key file cannot be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No credential for project proj-a"));
+        } finally {
+            mapper.close();
+        }
+    }
+}
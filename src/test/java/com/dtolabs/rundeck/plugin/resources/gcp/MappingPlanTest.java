@@ -0,0 +1,189 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* MappingPlanTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.google.api.services.compute.model.InstanceList;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The nodes mapped by {@link MappingPlan} must be the nodes the mapper produced before the mapping was compiled. The
+ * expected nodes below were produced by the previous {@code InstanceToNodeMapper.instanceToNode} from the instances
+ * of instance-list.json.
+ */
+public class MappingPlanTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PROJECT = "proj-a";
+
+    private static final String[] DEFAULT_MAPPING_NODES = {
+            "tags=[centos, prod, proj-a] attrs={description=GCE node instance, environment=prod, hostname=web-1, "
+            + "instanceId=1234567890123, internalIp=10.0.0.2, natIp=35.1.2.3, nodename=web-1, osFamily=unix, "
+            + "osName=centos, projectId=proj-a, "
+            + "selfLink=https://www.googleapis.com/compute/v1/projects/proj-a/zones/us-central1-a/instances/web-1, "
+            + "state=RUNNING, tags=[gce], username=rundeck}",
+            "tags=[gce, proj-a] attrs={description=GCE node instance, environment=test, instanceId=987, "
+            + "internalIp=10.0.0.9, nodename=987, osFamily=linux, osName=unknown, projectId=proj-a, "
+            + "state=TERMINATED, tags=[gce], username=rundeck}",
+            "tags=[dev, proj-a] attrs={description=GCE node instance, environment=dev, hostname=db-1, instanceId=55, "
+            + "internalIp=10.0.0.7, natIp=35.9.9.9, nodename=db-1, osFamily=linux, osName=unknown, "
+            + "projectId=proj-a, state=STAGING, tags=[gce], username=rundeck}",
+    };
+
+    /** defaults with and without selectors, an empty selector and a tag selector, but no tags.default */
+    private static final String DEFAULTS_MAPPING = "hostname.selector=name\n"
+                                                   + "nodename.selector=name,id\n"
+                                                   + "region.default=us\n"
+                                                   + "zone.selector=\n"
+                                                   + "zone.default=none\n"
+                                                   + "state.selector=status\n"
+                                                   + "tags.selector=labels.environment\n"
+                                                   + "tag.running.selector=status=RUNNING\n";
+
+    private static final String[] DEFAULTS_MAPPING_NODES = {
+            "tags=[prod, proj-a, running] attrs={hostname=web-1, nodename=web-1, projectId=proj-a, region=us, "
+            + "state=RUNNING, tags=[prod, proj-a, running], zone=none}",
+            "tags=[] attrs={nodename=987, projectId=proj-a, region=us, state=TERMINATED, tags=[], zone=none}",
+            "tags=[dev, proj-a] attrs={hostname=db-1, nodename=db-1, projectId=proj-a, region=us, state=STAGING, "
+            + "tags=[dev, proj-a], zone=none}",
+    };
+
+    /** no default at all, so no projectId attribute */
+    private static final String NO_DEFAULTS_MAPPING = "hostname.selector=name\n"
+                                                      + "nodename.selector=name,id\n"
+                                                      + "tags.selector=labels.environment,labels.osname\n";
+
+    private static final String[] NO_DEFAULTS_MAPPING_NODES = {
+            "tags=[prod, proj-a] attrs={hostname=web-1, nodename=web-1, tags=[prod, proj-a]}",
+            "tags=[] attrs={nodename=987, tags=[]}",
+            "tags=[dev, proj-a] attrs={hostname=db-1, nodename=db-1, tags=[dev, proj-a]}",
+    };
+
+    @Test
+    public void defaultMapping() throws Exception {
+        final Properties mapping = new Properties();
+        final InputStream in = MappingPlanTest.class.getResourceAsStream("/defaultMapping.properties");
+        try {
+            mapping.load(in);
+        } finally {
+            in.close();
+        }
+        assertNodes(mapping, DEFAULT_MAPPING_NODES);
+    }
+
+    @Test
+    public void defaultsAndProjectId() throws Exception {
+        assertNodes(mapping(DEFAULTS_MAPPING), DEFAULTS_MAPPING_NODES);
+    }
+
+    @Test
+    public void noDefaults() throws Exception {
+        assertNodes(mapping(NO_DEFAULTS_MAPPING), NO_DEFAULTS_MAPPING_NODES);
+    }
+
+    @Test
+    public void entriesWithAnInvalidIndexAreIgnored() throws Exception {
+        assertNodes(mapping(NO_DEFAULTS_MAPPING + "disk.selector=disks[first].deviceName\n"
+                            + "tag.bad.selector=disks[ ].type\n"), NO_DEFAULTS_MAPPING_NODES);
+    }
+
+    @Test
+    public void patchStatusUpdatesOnlyTheStatusSelections() throws Exception {
+        final MappingPlan plan = MappingPlan.compile(mapping(DEFAULTS_MAPPING));
+        final Map<String, Object> inst = new HashMap<String, Object>();
+        inst.put("name", "web-1");
+        inst.put("status", "RUNNING");
+        inst.put("labels", Collections.singletonMap("environment", "prod"));
+        final INodeEntry node = plan.toNode(inst, PROJECT);
+
+        //same status, the node is kept as it is
+        assertSame(node, plan.patchStatus(node, inst));
+
+        //the state attribute and the running tag follow the status, the name and labels are not read by a status
+        //refresh
+        final Map<String, Object> stopped = new HashMap<String, Object>();
+        stopped.put("name", "web-2");
+        stopped.put("status", "TERMINATED");
+        final INodeEntry patched = plan.patchStatus(node, stopped);
+        assertNotSame(node, patched);
+        assertEquals("tags=[prod, proj-a] attrs={hostname=web-1, nodename=web-1, projectId=proj-a, region=us, "
+                     + "state=TERMINATED, tags=[prod, proj-a], zone=none}", describe(patched));
+        assertEquals("RUNNING", node.getAttributes().get("state"));
+        assertEquals(describe(node), describe(plan.patchStatus(patched, inst)));
+    }
+
+    private static Properties mapping(final String definition) throws IOException {
+        final Properties mapping = new Properties();
+        mapping.load(new StringReader(definition));
+        return mapping;
+    }
+
+    /**
+     * Map the instances parsed by the Compute client, and parsed as a stream, and compare them to the expected nodes
+     */
+    private static void assertNodes(final Properties mapping, final String[] expected) throws Exception {
+        final MappingPlan plan = MappingPlan.compile(mapping);
+        final InputStream in = MappingPlanTest.class.getResourceAsStream("/instance-list.json");
+        final InstanceList list;
+        try {
+            list = ComputeClients.JSON_FACTORY.fromInputStream(in, UTF8, InstanceList.class);
+        } finally {
+            in.close();
+        }
+        final List<? extends Map<String, Object>> streamed =
+                new AggregatedListParser(ComputeClients.JSON_FACTORY, InstanceFieldMask.instanceFields(plan))
+                .parseList(MappingPlanTest.class.getResourceAsStream("/instance-list.json"), UTF8, "zones/z")
+                .getScopes().get("zones/z");
+
+        assertEquals(expected.length, list.getItems().size());
+        assertEquals(expected.length, streamed.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("instance " + i, expected[i], describe(plan.toNode(list.getItems().get(i), PROJECT)));
+            assertEquals("streamed instance " + i, expected[i], describe(plan.toNode(streamed.get(i), PROJECT)));
+        }
+    }
+
+    /**
+     * The tags and attributes of the node, sorted; the values of the tags attribute are sorted too, as their order
+     * depends on the tag set
+     */
+    private static String describe(final INodeEntry node) {
+        final TreeMap<String, String> attributes = new TreeMap<String, String>(node.getAttributes());
+        final String tagsAttribute = attributes.get("tags");
+        if (null != tagsAttribute) {
+            final TreeSet<String> values = new TreeSet<String>();
+            for (final String value : tagsAttribute.split(",")) {
+                if (!"".equals(value.trim())) {
+                    values.add(value.trim());
+                }
+            }
+            attributes.put("tags", values.toString());
+        }
+        return "tags=" + new TreeSet<Object>(node.getTags()) + " attrs=" + attributes;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* MultiProjectQueryTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import com.dtolabs.rundeck.core.common.NodeSetImpl;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merging the nodes of several projects, queried by mappers which return the nodes given by the test
+ */
+public class MultiProjectQueryTest {
+    private MultiProjectQuery query;
+
+    /**
+     * A mapper of the project which returns nodes with the given names, or fails while they are null
+     */
+    private static class StubMapper extends InstanceToNodeMapper {
+        volatile String[] names;
+
+        StubMapper(final String projectId, final String... names) {
+            super("/nonexistent/gcp-nodes-test-key.json", new Properties());
+            setProjectId(projectId);
+            this.names = names;
+        }
+
+        public INodeSet performQuery() throws IOException {
+            if (null == names) {
+                throw new IOException("query of " + getProjectId() + " failed");
+            }
+            final NodeSetImpl nodes = new NodeSetImpl();
+            for (final String name : names) {
+                final NodeEntryImpl node = new NodeEntryImpl(name);
+                node.setAttribute("projectId", getProjectId());
+                nodes.putNode(node);
+            }
+            return nodes;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (null != query) {
+            query.close();
+        }
+    }
+
+    @Test
+    public void nodenamesInSeveralProjectsAreQualified() throws Exception {
+        query = new MultiProjectQuery(Arrays.<InstanceToNodeMapper>asList(new StubMapper("proj-a", "web", "db"),
+                                                                           new StubMapper("proj-b", "web", "cache")),
+                                      2);
+        final INodeSet nodes = query.performQueryAsync().get();
+        assertEquals(new TreeSet<String>(Arrays.asList("proj-a/web", "proj-b/web", "db", "cache")),
+                     new TreeSet<String>(nodes.getNodeNames()));
+        assertEquals("proj-b", nodes.getNode("proj-b/web").getAttributes().get("projectId"));
+        assertEquals(0, query.getStaleSince());
+        assertTrue(query.describeProjectTimings(),
+                   query.describeProjectTimings().matches("proj-a \\d+ms, proj-b \\d+ms"));
+    }
+
+    @Test
+    public void failedProjectKeepsItsLastGoodNodes() throws Exception {
+        final StubMapper b = new StubMapper("proj-b", "cache");
+        query = new MultiProjectQuery(Arrays.<InstanceToNodeMapper>asList(new StubMapper("proj-a", "web"), b), 2);
+        query.performQueryAsync().get();
+        final long queried = System.currentTimeMillis();
+
+        b.names = null;
+        final INodeSet nodes = query.performQueryAsync().get();
+        assertEquals(new TreeSet<String>(Arrays.asList("web", "cache")), new TreeSet<String>(nodes.getNodeNames()));
+        assertNotNull(nodes.getNode("cache").getAttributes().get(
+                GCPResourceModelSource.NodeSnapshot.STALE_SINCE_ATTRIBUTE));
+        assertNull(nodes.getNode("web").getAttributes().get(
+                GCPResourceModelSource.NodeSnapshot.STALE_SINCE_ATTRIBUTE));
+        assertTrue(query.getStaleSince() > 0 && query.getStaleSince() <= queried);
+
+        b.names = new String[]{"cache"};
+        query.performQueryAsync().get();
+        assertEquals(0, query.getStaleSince());
+    }
+
+    @Test
+    public void projectFailingWithoutGoodNodesFailsTheQuery() throws Exception {
+        final StubMapper b = new StubMapper("proj-b");
+        b.names = null;
+        query = new MultiProjectQuery(Arrays.<InstanceToNodeMapper>asList(new StubMapper("proj-a", "web"), b), 2);
+        try {
+            query.performQueryAsync().join();
+            fail("proj-b has never been queried");
+        } catch (CompletionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("query of proj-b failed"));
+        }
+    }
+}
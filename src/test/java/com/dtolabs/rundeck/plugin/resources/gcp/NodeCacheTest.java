@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* NodeCacheTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.common.NodeEntryImpl;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Nodes reused across generations of the cache while the fingerprints of their instances do not change
+ */
+public class NodeCacheTest {
+
+    private static Map<String, Object> instance(final String id, final String fingerprint, final String status) {
+        final Map<String, Object> instance = new HashMap<String, Object>();
+        instance.put("id", id);
+        instance.put("fingerprint", fingerprint);
+        instance.put("labelFingerprint", "labels");
+        instance.put("status", status);
+        return instance;
+    }
+
+    /**
+     * Map the instance in the generation: the cached node, or a new node stored for the next generation
+     */
+    private static INodeEntry map(final NodeCache.Generation generation, final Map<String, Object> instance) {
+        final INodeEntry cached = generation.lookup(instance);
+        if (null != cached) {
+            return cached;
+        }
+        final INodeEntry node = new NodeEntryImpl("node-" + instance.get("id"));
+        generation.store(instance, node);
+        return node;
+    }
+
+    @Test
+    public void unchangedInstancesReuseTheirNode() {
+        final NodeCache cache = new NodeCache();
+        final NodeCache.Generation first = cache.nextGeneration();
+        final INodeEntry a = map(first, instance("1", "f1", "RUNNING"));
+        final INodeEntry b = map(first, instance("2", "f2", "RUNNING"));
+        first.commit();
+        assertEquals(0, first.getHits());
+        assertEquals(2, first.getMisses());
+
+        final NodeCache.Generation second = cache.nextGeneration();
+        assertSame(a, map(second, instance("1", "f1", "RUNNING")));
+        //a new fingerprint or status is a change
+        final INodeEntry changed = map(second, instance("2", "f2", "TERMINATED"));
+        assertNotSame(b, changed);
+        second.commit();
+        assertEquals(1, second.getHits());
+        assertEquals(1, second.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        final NodeCache.Generation third = cache.nextGeneration();
+        assertSame(changed, third.lookup(instance("2", "f2", "TERMINATED")));
+        //e.g. the mapping has changed
+        cache.clear();
+        assertNull(cache.nextGeneration().lookup(instance("2", "f2", "TERMINATED")));
+    }
+
+    @Test
+    public void generationReplacesTheCacheOnlyOnceCommitted() {
+        final NodeCache cache = new NodeCache();
+        final NodeCache.Generation first = cache.nextGeneration();
+        final INodeEntry a = map(first, instance("1", "f1", "RUNNING"));
+        map(first, instance("2", "f2", "RUNNING"));
+        first.commit();
+
+        //a refresh which fails is never committed, the previous generation stays
+        final NodeCache.Generation failed = cache.nextGeneration();
+        map(failed, instance("1", "changed", "RUNNING"));
+        final NodeCache.Generation second = cache.nextGeneration();
+        assertSame(a, second.lookup(instance("1", "f1", "RUNNING")));
+        second.commit();
+        assertEquals(0, failed.getHits());
+        assertEquals(1, cache.getHits());
+
+        //instance 2 was not listed by the second refresh, so it dropped out
+        assertNull(cache.nextGeneration().lookup(instance("2", "f2", "RUNNING")));
+    }
+
+    @Test
+    public void instancesWithoutFingerprintAreNotCached() {
+        final NodeCache cache = new NodeCache();
+        final Map<String, Object> instance = new HashMap<String, Object>();
+        instance.put("id", "1");
+        instance.put("status", "RUNNING");
+        assertNull(NodeCache.fingerprint(instance));
+        final NodeCache.Generation first = cache.nextGeneration();
+        map(first, instance);
+        first.commit();
+        assertNull(cache.nextGeneration().lookup(instance));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* ProjectZonesTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.compute.Compute;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The zone allowlist, and the zone list cached for its TTL, served by a mock transport
+ */
+public class ProjectZonesTest {
+    private static final String[] PAGES = {
+            "{\"nextPageToken\": \"page-2\", \"items\": [{\"name\": \"us-central1-a\"}, "
+            + "{\"name\": \"us-central1-b\"}]}",
+            "{\"items\": [{\"name\": \"europe-west1-b\"}]}",
+    };
+
+    private int requests = 0;
+    private final Compute compute = new Compute.Builder(new MockHttpTransport() {
+        public LowLevelHttpRequest buildRequest(final String method, final String url) {
+            final MockLowLevelHttpRequest request = new MockLowLevelHttpRequest(url);
+            request.setResponse(new MockLowLevelHttpResponse().setContentType("application/json")
+                                                              .setContent(PAGES[requests++ % PAGES.length]));
+            return request;
+        }
+    }, ComputeClients.JSON_FACTORY, null).setApplicationName(ComputeClients.APPLICATION_NAME).build();
+
+    private static Set<String> allowlist(final String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    @Test
+    public void zonesAndRegionsAreAllowed() {
+        assertTrue(ProjectZones.allowed("us-central1-a", allowlist()));
+        assertTrue(ProjectZones.allowed("us-central1-a", null));
+        assertTrue(ProjectZones.allowed("us-central1-a", allowlist("us-central1-a")));
+        assertTrue(ProjectZones.allowed("us-central1-a", allowlist("us-central1")));
+        assertFalse(ProjectZones.allowed("us-central1-a", allowlist("us-central1-b", "europe-west1")));
+        assertFalse(ProjectZones.allowed("us-central1-a", allowlist("us")));
+
+        assertTrue(ProjectZones.scopeAllowed("zones/us-central1-a", allowlist("us-central1")));
+        assertFalse(ProjectZones.scopeAllowed("zones/europe-west1-b", allowlist("us-central1")));
+        assertTrue(ProjectZones.scopeAllowed("regions/us-central1", allowlist()));
+        assertFalse(ProjectZones.scopeAllowed("regions/us-central1", allowlist("us-central1")));
+    }
+
+    @Test
+    public void zonesAreListedOnceForTheirTtl() throws Exception {
+        final ProjectZones zones = new ProjectZones(300);
+        assertEquals(Arrays.asList("us-central1-a", "us-central1-b", "europe-west1-b"),
+                     zones.zones(compute, "proj-a", allowlist()));
+        assertEquals(2, requests);
+        //the cached list is filtered by each allowlist
+        assertEquals(Arrays.asList("us-central1-a", "us-central1-b"),
+                     zones.zones(compute, "proj-a", allowlist("us-central1")));
+        assertEquals(Collections.singletonList("europe-west1-b"),
+                     zones.zones(compute, "proj-a", allowlist("europe-west1-b")));
+        assertEquals(2, requests);
+
+        Thread.sleep(350);
+        zones.zones(compute, "proj-a", allowlist());
+        assertEquals(4, requests);
+        //another project, or a cleared cache, is listed again
+        zones.zones(compute, "proj-b", allowlist());
+        assertEquals(6, requests);
+        zones.clear();
+        zones.zones(compute, "proj-b", allowlist());
+        assertEquals(8, requests);
+    }
+}
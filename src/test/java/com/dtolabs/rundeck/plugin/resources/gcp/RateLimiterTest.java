@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* RateLimiterTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The token bucket shared by the sources of a credential and project
+ */
+public class RateLimiterTest {
+
+    private static long acquireMillis(final RateLimiter limiter, final int requests) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            limiter.acquire();
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    @Test
+    public void requestsBeyondTheBucketWait() throws Exception {
+        final RateLimiter limiter = new RateLimiter();
+        limiter.setRate(10);
+        //a full bucket of one second of requests goes right away
+        assertTrue(acquireMillis(limiter, 10) < 100);
+        assertEquals(0, limiter.getThrottledCount());
+        //then one request every 100ms
+        final long waited = acquireMillis(limiter, 5);
+        assertTrue("waited " + waited + "ms", waited >= 400 && waited < 1000);
+        assertEquals(5, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void noLimitWithoutRate() throws Exception {
+        final RateLimiter limiter = new RateLimiter();
+        limiter.setRate(0);
+        assertTrue(acquireMillis(limiter, 1000) < 100);
+        assertEquals(0, limiter.getThrottledCount());
+    }
+
+    @Test
+    public void holdOffDelaysEveryRequest() throws Exception {
+        final RateLimiter limiter = new RateLimiter();
+        limiter.setRate(0);
+        limiter.holdOff(300);
+        final long waited = acquireMillis(limiter, 2);
+        assertTrue("waited " + waited + "ms", waited >= 250 && waited < 1000);
+        assertEquals(1, limiter.getRateLimitedCount());
+    }
+
+    @Test
+    public void limiterIsSharedAndTheLastRateWins() {
+        final RateLimiter first = RateLimiter.forKey("rate-limiter-test-key", "proj-a");
+        assertSame(first, RateLimiter.forKey("rate-limiter-test-key", "proj-a"));
+        assertNotSame(first, RateLimiter.forKey("rate-limiter-test-key", "proj-b"));
+        assertNotSame(first, RateLimiter.forKey("rate-limiter-other-key", "proj-a"));
+        assertEquals(RateLimiter.DEFAULT_RATE, first.getRate(), 0);
+
+        //sources of the same project set their rates in turn, the last one applies to all of them
+        first.setRate(50);
+        RateLimiter.forKey("rate-limiter-test-key", "proj-a").setRate(5);
+        assertEquals(5, first.getRate(), 0);
+    }
+}
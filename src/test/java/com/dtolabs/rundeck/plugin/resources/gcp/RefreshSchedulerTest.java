@@ -0,0 +1,59 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* RefreshSchedulerTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Refresh times of the sources: aligned for the same phase key, whenever the sources were registered
+ */
+public class RefreshSchedulerTest {
+    private static final long INTERVAL = 30000;
+    private static final long NOW = 1500000000000L;
+
+    @Test
+    public void sourcesWithTheSameKeyAreRefreshedTogether() {
+        for (final long registered : new long[]{0, 1234, 7000, 26999}) {
+            final long delay = RefreshScheduler.nextDelay(INTERVAL, "proj-a", NOW + registered);
+            assertEquals("registered after " + registered + "ms",
+                         (NOW + RefreshScheduler.nextDelay(INTERVAL, "proj-a", NOW)) % 27000,
+                         (NOW + registered + delay) % 27000);
+        }
+    }
+
+    @Test
+    public void refreshesStayAheadOfTheInterval() {
+        for (long now = NOW; now < NOW + INTERVAL; now += 97) {
+            final long delay = RefreshScheduler.nextDelay(INTERVAL, "proj-a", now);
+            assertTrue("delay " + delay, delay >= 2700 && delay < INTERVAL);
+        }
+    }
+
+    @Test
+    public void otherKeysHaveOtherPhases() {
+        assertNotEquals(RefreshScheduler.nextDelay(INTERVAL, "proj-a", NOW),
+                        RefreshScheduler.nextDelay(INTERVAL, "proj-b", NOW));
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2011 DTO Solutions, Inc. (http://dtosolutions.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+* SharedQueryTest.java
+*
+*/
+package com.dtolabs.rundeck.plugin.resources.gcp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sharing of a listing between subscribers, with listings publishing pages named "page-1", "page-2"...
+ */
+public class SharedQueryTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /**
+     * Publishes its first pages, waits for its gate, publishes the others, then fails if it has a failure
+     */
+    private static class GatedListing implements SharedQuery.Listing {
+        final int before;
+        final int after;
+        final IOException failure;
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger published = new AtomicInteger();
+        /** instances of each page */
+        int pageSize = 0;
+
+        GatedListing(final int before, final int after, final IOException failure) {
+            this.before = before;
+            this.after = after;
+            this.failure = failure;
+        }
+
+        public void list(final InstanceToNodeMapper.InstancePageHandler handler) throws IOException {
+            runs.incrementAndGet();
+            for (int i = 1; i <= before; i++) {
+                publish(handler, i);
+            }
+            try {
+                if (!gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IOException("the gate was not opened");
+                }
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new InterruptedIOException("cancelled");
+            }
+            for (int i = before + 1; i <= before + after; i++) {
+                publish(handler, i);
+            }
+            if (null != failure) {
+                throw failure;
+            }
+        }
+
+        private void publish(final InstanceToNodeMapper.InstancePageHandler handler, final int page) {
+            handler.handlePage("page-" + page, Collections.nCopies(pageSize, Collections.<String, Object>emptyMap()));
+            published.incrementAndGet();
+        }
+    }
+
+    /**
+     * Lists the key on a thread of its own, recording the pages it is given
+     */
+    private static class Subscriber extends Thread {
+        final String key;
+        final SharedQuery.Listing listing;
+        final QueryExecutor owner = new QueryExecutor();
+        final List<String> pages = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch firstPage = new CountDownLatch(1);
+        /** if set, the first page is handled once it is open */
+        final CountDownLatch hold;
+        /** how long ago a completed listing may have finished to be reused */
+        long reuseWindow = 0;
+        volatile IOException error;
+
+        Subscriber(final String key, final SharedQuery.Listing listing, final CountDownLatch hold) {
+            this.key = key;
+            this.listing = listing;
+            this.hold = hold;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                SharedQuery.list(key, listing, new InstanceToNodeMapper.InstancePageHandler() {
+                    public void handlePage(final String scope, final List<? extends Map<String, Object>> instances) {
+                        pages.add(scope);
+                        firstPage.countDown();
+                        if (null != hold && 1 == pages.size()) {
+                            try {
+                                hold.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+
+                    public void scopeFailed(final String scope, final String reason) {
+                        pages.add(scope + " failed");
+                    }
+                }, owner, reuseWindow);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        Subscriber reusing(final long reuseWindow) {
+            this.reuseWindow = reuseWindow;
+            return this;
+        }
+
+        Subscriber started() {
+            start();
+            return this;
+        }
+
+        Subscriber finished() throws InterruptedException {
+            join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+            assertFalse("subscriber of " + key + " still running", isAlive());
+            return this;
+        }
+    }
+
+    private abstract static class Condition {
+        abstract boolean met();
+    }
+
+    private static void waitFor(final String description, final Condition condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+        while (!condition.met()) {
+            assertTrue("timed out waiting for " + description, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitSubscribers(final String key, final int count) throws InterruptedException {
+        waitFor(count + " subscribers of " + key, new Condition() {
+            boolean met() {
+                return SharedQuery.subscribers(key) == count;
+            }
+        });
+    }
+
+    @Test
+    public void concurrentSubscribersShareOneListing() throws Exception {
+        final String key = "shared";
+        final GatedListing listing = new GatedListing(0, 3, null);
+        final Subscriber first = new Subscriber(key, listing, null).started();
+        awaitSubscribers(key, 1);
+        final Subscriber second = new Subscriber(key, listing, null).started();
+        awaitSubscribers(key, 2);
+        listing.gate.countDown();
+
+        first.finished();
+        second.finished();
+        assertEquals(1, listing.runs.get());
+        assertNull(first.error);
+        assertNull(second.error);
+        assertEquals(Arrays.asList("page-1", "page-2", "page-3"), first.pages);
+        assertEquals(Arrays.asList("page-1", "page-2", "page-3"), second.pages);
+        assertEquals(0, SharedQuery.subscribers(key));
+    }
+
+    @Test
+    public void lateSubscriberSharesARetainedListing() throws Exception {
+        final String key = "late-retained";
+        final GatedListing listing = new GatedListing(1, 1, null);
+        final Subscriber first = new Subscriber(key, listing, null).started();
+        assertTrue(first.firstPage.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        //the pages of a small listing are kept, so the late subscriber is given them from the first one
+        final Subscriber late = new Subscriber(key, listing, null).started();
+        awaitSubscribers(key, 2);
+        listing.gate.countDown();
+
+        first.finished();
+        late.finished();
+        assertEquals(1, listing.runs.get());
+        assertNull(first.error);
+        assertNull(late.error);
+        assertEquals(Arrays.asList("page-1", "page-2"), first.pages);
+        assertEquals(Arrays.asList("page-1", "page-2"), late.pages);
+    }
+
+    @Test
+    public void lateSubscriberStartsItsOwnListing() throws Exception {
+        final String key = "late";
+        final GatedListing listing = new GatedListing(1, 1, null);
+        listing.pageSize = SharedQuery.MAX_RETAINED_INSTANCES + 1;
+        final Subscriber first = new Subscriber(key, listing, null).started();
+        assertTrue(first.firstPage.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        //the first page is too large to be kept and has been released, so it cannot be replayed
+        final Subscriber late = new Subscriber(key, listing, null).started();
+        assertTrue(late.firstPage.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, listing.runs.get());
+        assertEquals(1, SharedQuery.subscribers(key));
+        listing.gate.countDown();
+
+        first.finished();
+        late.finished();
+        assertNull(first.error);
+        assertNull(late.error);
+        assertEquals(Arrays.asList("page-1", "page-2"), first.pages);
+        assertEquals(Arrays.asList("page-1", "page-2"), late.pages);
+    }
+
+    @Test
+    public void completedListingIsReusedWithinTheWindow() throws Exception {
+        final String key = "reused";
+        final GatedListing listing = new GatedListing(0, 2, null);
+        listing.gate.countDown();
+        final Subscriber first = new Subscriber(key, listing, null).reusing(10000).started().finished();
+        assertEquals(1, listing.runs.get());
+
+        //a source refreshed a few seconds later is handed the same pages without listing again
+        Thread.sleep(2000);
+        final Subscriber second = new Subscriber(key, listing, null).reusing(10000).started().finished();
+        assertEquals(1, listing.runs.get());
+        assertNull(second.error);
+        assertEquals(first.pages, second.pages);
+        assertEquals(Arrays.asList("page-1", "page-2"), second.pages);
+
+        //a source with a shorter window lists again, and the later sources reuse its listing
+        new Subscriber(key, listing, null).reusing(1000).started().finished();
+        assertEquals(2, listing.runs.get());
+        new Subscriber(key, listing, null).reusing(1000).started().finished();
+        assertEquals(2, listing.runs.get());
+    }
+
+    @Test
+    public void completedListingIsNotReusedWithoutAWindow() throws Exception {
+        final String key = "no-window";
+        final GatedListing listing = new GatedListing(0, 1, null);
+        listing.gate.countDown();
+        //back to back, most of them start within the millisecond the previous one completed
+        for (int i = 1; i <= 50; i++) {
+            assertNull(new Subscriber(key, listing, null).reusing(0).started().finished().error);
+            assertEquals(i, listing.runs.get());
+        }
+    }
+
+    @Test
+    public void largeListingIsNotReused() throws Exception {
+        final String key = "large";
+        final GatedListing listing = new GatedListing(0, 2, null);
+        listing.pageSize = SharedQuery.MAX_RETAINED_INSTANCES / 2 + 1;
+        listing.gate.countDown();
+        new Subscriber(key, listing, null).reusing(10000).started().finished();
+        final Subscriber second = new Subscriber(key, listing, null).reusing(10000).started().finished();
+        assertNull(second.error);
+        assertEquals(Arrays.asList("page-1", "page-2"), second.pages);
+        assertEquals(2, listing.runs.get());
+    }
+
+    @Test
+    public void listingIsCancelledWhenItsLastSubscriberLeaves() throws Exception {
+        final String key = "cancelled";
+        final GatedListing listing = new GatedListing(0, 1, null);
+        final Subscriber first = new Subscriber(key, listing, null).started();
+        awaitSubscribers(key, 1);
+        final Subscriber second = new Subscriber(key, listing, null).started();
+        awaitSubscribers(key, 2);
+
+        first.owner.close();
+        first.finished();
+        assertTrue(String.valueOf(first.error), first.error instanceof InterruptedIOException);
+        assertEquals(1, SharedQuery.subscribers(key));
+        assertEquals("listing cancelled with a subscriber left", 1, listing.interrupted.getCount());
+
+        second.owner.close();
+        second.finished();
+        assertTrue(String.valueOf(second.error), second.error instanceof InterruptedIOException);
+        assertTrue("listing not cancelled", listing.interrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, SharedQuery.subscribers(key));
+
+        //the next subscriber starts over
+        listing.gate.countDown();
+        final Subscriber next = new Subscriber(key, listing, null).started().finished();
+        assertNull(next.error);
+        assertEquals(Collections.singletonList("page-1"), next.pages);
+        assertEquals(2, listing.runs.get());
+    }
+
+    @Test
+    public void failureIsReportedToEverySubscriber() throws Exception {
+        final String key = "failed";
+        final GatedListing listing = new GatedListing(0, 1, new IOException("quota exceeded"));
+        final Subscriber first = new Subscriber(key, listing, null).started();
+        awaitSubscribers(key, 1);
+        final Subscriber second = new Subscriber(key, listing, null).started();
+        awaitSubscribers(key, 2);
+        listing.gate.countDown();
+
+        for (final Subscriber subscriber : Arrays.asList(first.finished(), second.finished())) {
+            assertEquals(Collections.singletonList("page-1"), subscriber.pages);
+            assertNotNull(subscriber.error);
+            assertTrue(subscriber.error.getMessage(), subscriber.error.getMessage().contains("quota exceeded"));
+        }
+        assertEquals(1, listing.runs.get());
+
+        //the failed listing is forgotten
+        final Subscriber next = new Subscriber(key, listing, null).started().finished();
+        assertEquals(2, listing.runs.get());
+        assertNotNull(next.error);
+    }
+
+    @Test
+    public void listingWaitsForItsSlowestSubscriber() throws Exception {
+        final String key = "slow";
+        final int pages = 100;
+        final GatedListing listing = new GatedListing(pages, 0, null);
+        listing.gate.countDown();
+        final CountDownLatch hold = new CountDownLatch(1);
+        final Subscriber slow = new Subscriber(key, listing, hold).started();
+        assertTrue(slow.firstPage.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(500);
+        assertEquals("pages published while the first one is handled", SharedQuery.MAX_BUFFERED_EVENTS + 1,
+                     listing.published.get());
+
+        hold.countDown();
+        slow.finished();
+        assertNull(slow.error);
+        assertEquals(pages, slow.pages.size());
+        assertEquals("page-" + pages, slow.pages.get(pages - 1));
+    }
+}